@@ -0,0 +1,220 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary file holding the state a device has learned, such as a
+ * router's ARP cache or a switch's forwarding table, so a restarted device
+ * does not have to learn it all again.
+ * <p>
+ * The file starts with a header: a magic number, the format version, the
+ * time (from System.currentTimeMillis) the checkpoint was written, the
+ * length of the body and a CRC32 of the body. The body is the device's host
+ * name followed by whatever the device writes in
+ * {@link Device#saveState}. Files are replaced atomically, so a crash while
+ * writing leaves the previous checkpoint in place.
+ * <p>
+ * A checkpoint can be written periodically in the background, on a daemon
+ * thread of its own; a last one is written when it is stopped.
+ */
+public class Checkpoint
+{
+	/** Default time (in milliseconds) between checkpoints */
+	public static final long DEFAULT_INTERVAL = 30000;
+
+	/** Identifies a checkpoint file */
+	private static final int MAGIC = 0x56434b50;
+
+	/** Version of the format; files with any other version are rejected */
+	private static final int VERSION = 1;
+
+	/** Size of the header, in bytes */
+	private static final int HEADER_SIZE = 24;
+
+	/** Device whose state is written */
+	private Device device;
+
+	/** Name of the file */
+	private String filename;
+
+	/** Writes checkpoints periodically; null until started */
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Create periodic checkpoints of a device; nothing is written until
+	 * they are started.
+	 * @param device the device
+	 * @param filename name of the file
+	 */
+	public Checkpoint(Device device, String filename)
+	{
+		this.device = device;
+		this.filename = filename;
+		this.scheduler = null;
+	}
+
+	/**
+	 * Start writing a checkpoint periodically.
+	 * @param interval time (in milliseconds) between checkpoints
+	 */
+	public void start(long interval)
+	{
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory()
+				{
+					public Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, "Checkpoint");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		this.scheduler.scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{ write(device, filename); }
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop writing checkpoints periodically, and write a last one.
+	 */
+	public void stop()
+	{
+		if (this.scheduler != null)
+		{
+			this.scheduler.shutdown();
+			try
+			{ this.scheduler.awaitTermination(5, TimeUnit.SECONDS); }
+			catch (InterruptedException e)
+			{ Thread.currentThread().interrupt(); }
+		}
+		write(this.device, this.filename);
+	}
+
+	/**
+	 * Write the state a device has learned to a file.
+	 * @param device the device
+	 * @param filename name of the file
+	 * @return true if the file was written, otherwise false
+	 */
+	public static boolean write(Device device, String filename)
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			bytes.write(new byte[HEADER_SIZE]);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeUTF(device.getHost());
+			device.saveState(out);
+			out.flush();
+
+			byte[] buf = bytes.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(buf, HEADER_SIZE, buf.length - HEADER_SIZE);
+			ByteBuffer header = ByteBuffer.wrap(buf);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putLong(System.currentTimeMillis());
+			header.putInt(buf.length - HEADER_SIZE);
+			header.putInt((int)crc.getValue());
+
+			// Replace the previous checkpoint only once this one is complete
+			File file = new File(filename);
+			File tmp = new File(filename + ".tmp");
+			Files.write(tmp.toPath(), buf);
+			Files.move(tmp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Restore the state a device has learned from a file. The state ages by
+	 * the time since the file was written.
+	 * @param device the device
+	 * @param filename name of the file
+	 * @return true if the state was restored, false if the file could not
+	 *         be read, is not a checkpoint of the current version, is
+	 *         corrupt, or belongs to another device
+	 */
+	public static boolean read(Device device, String filename)
+	{
+		byte[] buf;
+		try
+		{ buf = Files.readAllBytes(new File(filename).toPath()); }
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return false;
+		}
+
+		ByteBuffer header = ByteBuffer.wrap(buf);
+		if (buf.length < HEADER_SIZE || header.getInt() != MAGIC)
+		{
+			System.err.println(filename + " is not a checkpoint file");
+			return false;
+		}
+		int version = header.getInt();
+		if (version != VERSION)
+		{
+			System.err.println(String.format(
+					"Checkpoint file %s has version %d, expected %d",
+					filename, version, VERSION));
+			return false;
+		}
+		long written = header.getLong();
+		int length = header.getInt();
+		int checksum = header.getInt();
+		CRC32 crc = new CRC32();
+		if (length == buf.length - HEADER_SIZE)
+		{ crc.update(buf, HEADER_SIZE, length); }
+		if (length != buf.length - HEADER_SIZE
+				|| (int)crc.getValue() != checksum)
+		{
+			System.err.println("Checksum mismatch in checkpoint file "
+					+ filename);
+			return false;
+		}
+
+		try
+		{
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					buf, HEADER_SIZE, length));
+			String host = in.readUTF();
+			if (!host.equals(device.getHost()))
+			{
+				System.err.println("Checkpoint file " + filename
+						+ " belongs to " + host);
+				return false;
+			}
+			long downtime = Math.max(0, System.currentTimeMillis() - written);
+			device.restoreState(in, downtime);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Malformed checkpoint file " + filename);
+			return false;
+		}
+		return true;
+	}
+}
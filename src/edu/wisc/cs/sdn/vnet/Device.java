@@ -1,5 +1,8 @@
 package edu.wisc.cs.sdn.vnet;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -110,5 +113,64 @@ public abstract class Device
 	public boolean sendPacket(Ethernet etherPacket, Iface iface)
 	{ return this.vnsComm.sendPacket(etherPacket, iface.getName()); }
 	
+	/**
+	 * Send a frame that is already in bytes out a specific interface. A
+	 * frame received by {@link #handleFrame} is sent from the buffer it was
+	 * received in, without being copied.
+	 * @param frame the bytes holding the frame
+	 * @param offset where the frame starts
+	 * @param length length of the frame
+	 * @param iface interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendFrame(byte[] frame, int offset, int length, Iface iface)
+	{ return this.vnsComm.sendFrame(frame, offset, length, iface.getName()); }
+	
+	/**
+	 * Decide whether to handle a received frame, looking only at its bytes
+	 * before they are parsed; frames that are rejected are dropped. Devices
+	 * that accept every frame need not override this.
+	 * @param frame the bytes holding the frame
+	 * @param offset where the frame starts
+	 * @param length length of the frame
+	 * @return true if the frame should be parsed and handled
+	 */
+	public boolean acceptFrame(byte[] frame, int offset, int length)
+	{ return true; }
+	
+	/**
+	 * Handle a received frame directly in its bytes, without parsing it,
+	 * if the device can. The frame may be modified in place and sent with
+	 * {@link #sendFrame}. Frames that are not handled are parsed and passed
+	 * to {@link #handlePacket}.
+	 * @param frame the bytes holding the frame
+	 * @param offset where the frame starts
+	 * @param length length of the frame
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was handled, otherwise false
+	 */
+	public boolean handleFrame(byte[] frame, int offset, int length, 
+			Iface inIface)
+	{ return false; }
+	
+	/**
+	 * Write the state the device has learned to a checkpoint, so it can be
+	 * restored after a restart. Devices that learn nothing write nothing.
+	 * @param out the body of the checkpoint
+	 */
+	protected void saveState(DataOutputStream out) throws IOException
+	{ }
+	
+	/**
+	 * Restore learned state from a checkpoint written by
+	 * {@link #saveState}; the device's interfaces must already be known.
+	 * @param in the body of the checkpoint
+	 * @param downtime time (in milliseconds) since the checkpoint was
+	 *        written, by which learned state has aged
+	 */
+	protected void restoreState(DataInputStream in, long downtime) 
+			throws IOException
+	{ }
+	
 	public abstract void handlePacket(Ethernet etherPacket, Iface inIface);
 }
@@ -11,6 +11,7 @@ public class Iface
 {
 	private String name;
 	private MACAddress macAddress;
+	private byte[] macBytes;
 	private int ipAddress;
     private int subnetMask;
 	
@@ -18,6 +19,7 @@ public class Iface
 	{
 		this.name = name;
 		this.macAddress = null;
+		this.macBytes = null;
 		this.ipAddress = 0;
 	}
 	
@@ -25,10 +27,20 @@ public class Iface
 	{ return this.name; }
 	
 	public void setMacAddress(MACAddress mac)
-	{ this.macAddress = mac; }
+	{
+		this.macAddress = mac;
+		this.macBytes = (null == mac) ? null : mac.toBytes();
+	}
 	
 	public MACAddress getMacAddress()
 	{ return this.macAddress; }
+	
+	/**
+	 * @return the MAC address as bytes, shared by all callers; must not be
+	 *         modified
+	 */
+	public byte[] getMacBytes()
+	{ return this.macBytes; }
 
 	public void setIpAddress(int ip)
 	{ this.ipAddress = ip; }
@@ -0,0 +1,359 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous log for messages about packets. Each subsystem has its own
+ * level; messages above it are discarded before anything is formatted.
+ * Messages that pass are put, unformatted, in a bounded ring buffer and
+ * formatted and printed by a background daemon thread, so the threads
+ * handling packets never wait for the console. When the buffer is full,
+ * messages are dropped and counted.
+ * <p>
+ * Arguments are formatted on the background thread, after the call
+ * returns; callers must pass values that do not change afterwards, such as
+ * strings and boxed numbers, not packets that are still being modified.
+ * <p>
+ * Debug messages about individual packets can be sampled: with a sample
+ * rate of N, {@link #sample} lets through one packet in N, so a packet's
+ * messages are either all logged or all skipped.
+ */
+public class Log
+{
+	/** Severity of a message; a subsystem at a level logs messages of that
+	 *  level and the levels before it */
+	public enum Level { OFF, ERROR, WARN, INFO, DEBUG }
+
+	/** Parts of the device that log */
+	public enum Subsystem { ROUTER, ARP, ROUTE, SWITCH, VNS }
+
+	/** Default level of every subsystem */
+	public static final Level DEFAULT_LEVEL = Level.INFO;
+
+	/** Number of messages the ring buffer holds; a power of two */
+	private static final int CAPACITY = 8192;
+
+	/** Time (in nanoseconds) the writer sleeps when the buffer is empty */
+	private static final long IDLE_NANOS = 1000000;
+
+	/** A slot of the ring buffer */
+	private static final class Record
+	{
+		/** Position in the buffer this slot may be written at, plus one once
+		 *  it has been written and may be read */
+		private volatile long sequence;
+
+		private Level level;
+		private Subsystem subsystem;
+		private String format;
+		private int numArgs;
+		private Object arg1;
+		private Object arg2;
+		private Object arg3;
+	}
+
+	/** Level of each subsystem, by ordinal; replaced as a whole */
+	private static volatile int[] levels;
+
+	/** Number of packets per sampled packet; 1 logs every packet */
+	private static volatile int sampleRate = 1;
+
+	/** Packets seen by {@link #sample} */
+	private static AtomicLong samples = new AtomicLong();
+
+	/** The ring buffer, the next position to write and the next to read;
+	 *  only the writer thread reads */
+	private static final Record[] ring;
+	private static AtomicLong head = new AtomicLong();
+	private static long tail = 0;
+
+	/** Number of messages dropped because the buffer was full */
+	private static LongAdder dropped = new LongAdder();
+
+	/** Prints messages; started with the first message */
+	private static volatile Thread writer = null;
+
+	static
+	{
+		int[] initial = new int[Subsystem.values().length];
+		for (int i = 0; i < initial.length; i++)
+		{ initial[i] = DEFAULT_LEVEL.ordinal(); }
+		levels = initial;
+		ring = new Record[CAPACITY];
+		for (int i = 0; i < CAPACITY; i++)
+		{
+			ring[i] = new Record();
+			ring[i].sequence = i;
+		}
+	}
+
+	private Log()
+	{ }
+
+	/**
+	 * Set the level of one subsystem.
+	 * @param subsystem the subsystem
+	 * @param level the most detailed level logged
+	 */
+	public static synchronized void setLevel(Subsystem subsystem, Level level)
+	{
+		int[] updated = levels.clone();
+		updated[subsystem.ordinal()] = level.ordinal();
+		levels = updated;
+	}
+
+	/**
+	 * Set the level of every subsystem.
+	 * @param level the most detailed level logged
+	 */
+	public static synchronized void setLevel(Level level)
+	{
+		for (Subsystem subsystem : Subsystem.values())
+		{ setLevel(subsystem, level); }
+	}
+
+	/**
+	 * Set levels from a comma-separated list of levels, which apply to every
+	 * subsystem, and subsystem=level pairs, e.g. "warn,router=debug".
+	 * @param spec the list; names are not case-sensitive
+	 * @return true if the list was valid; levels before an invalid entry
+	 *         are set
+	 */
+	public static boolean configure(String spec)
+	{
+		for (String entry : spec.split(","))
+		{
+			String[] parts = entry.trim().toUpperCase().split("=");
+			try
+			{
+				if (1 == parts.length)
+				{ setLevel(Level.valueOf(parts[0])); }
+				else if (2 == parts.length)
+				{ setLevel(Subsystem.valueOf(parts[0]), Level.valueOf(parts[1])); }
+				else
+				{ return false; }
+			}
+			catch (IllegalArgumentException e)
+			{ return false; }
+		}
+		return true;
+	}
+
+	/**
+	 * Sample debug messages about packets.
+	 * @param rate number of packets per packet logged; 1 logs every packet
+	 */
+	public static void setSampleRate(int rate)
+	{ sampleRate = Math.max(1, rate); }
+
+	/**
+	 * Checks whether a subsystem logs messages of a level.
+	 * @param subsystem the subsystem
+	 * @param level the level
+	 * @return true if such messages are logged
+	 */
+	public static boolean isEnabled(Subsystem subsystem, Level level)
+	{ return (level.ordinal() <= levels[subsystem.ordinal()]); }
+
+	/**
+	 * Decide whether to log debug messages about a packet; with a sample
+	 * rate of N, one packet in N is logged.
+	 * @param subsystem the subsystem handling the packet
+	 * @return true if the packet's debug messages should be logged
+	 */
+	public static boolean sample(Subsystem subsystem)
+	{
+		if (!isEnabled(subsystem, Level.DEBUG))
+		{ return false; }
+		int rate = sampleRate;
+		return (1 == rate || 0 == samples.getAndIncrement() % rate);
+	}
+
+	/**
+	 * Log a message.
+	 * @param subsystem the subsystem logging
+	 * @param level the severity of the message
+	 * @param message the message; not formatted
+	 */
+	public static void log(Subsystem subsystem, Level level, String message)
+	{
+		if (isEnabled(subsystem, level))
+		{ append(subsystem, level, message, 0, null, null, null); }
+	}
+
+	/**
+	 * Log a message with one argument.
+	 * @param subsystem the subsystem logging
+	 * @param level the severity of the message
+	 * @param format format string, as for String.format
+	 * @param arg1 argument; must not change once logged
+	 */
+	public static void log(Subsystem subsystem, Level level, String format,
+			Object arg1)
+	{
+		if (isEnabled(subsystem, level))
+		{ append(subsystem, level, format, 1, arg1, null, null); }
+	}
+
+	/**
+	 * Log a message with two arguments.
+	 * @param subsystem the subsystem logging
+	 * @param level the severity of the message
+	 * @param format format string, as for String.format
+	 * @param arg1 argument; must not change once logged
+	 * @param arg2 argument; must not change once logged
+	 */
+	public static void log(Subsystem subsystem, Level level, String format,
+			Object arg1, Object arg2)
+	{
+		if (isEnabled(subsystem, level))
+		{ append(subsystem, level, format, 2, arg1, arg2, null); }
+	}
+
+	/**
+	 * Log a message with three arguments.
+	 * @param subsystem the subsystem logging
+	 * @param level the severity of the message
+	 * @param format format string, as for String.format
+	 * @param arg1 argument; must not change once logged
+	 * @param arg2 argument; must not change once logged
+	 * @param arg3 argument; must not change once logged
+	 */
+	public static void log(Subsystem subsystem, Level level, String format,
+			Object arg1, Object arg2, Object arg3)
+	{
+		if (isEnabled(subsystem, level))
+		{ append(subsystem, level, format, 3, arg1, arg2, arg3); }
+	}
+
+	/**
+	 * Put a message in the ring buffer, or drop it if the buffer is full.
+	 */
+	private static void append(Subsystem subsystem, Level level,
+			String format, int numArgs, Object arg1, Object arg2, Object arg3)
+	{
+		if (null == writer)
+		{ startWriter(); }
+
+		// Claim the next slot, unless the writer has not emptied it yet
+		Record record;
+		long position;
+		while (true)
+		{
+			position = head.get();
+			record = ring[(int)(position & (CAPACITY - 1))];
+			if (record.sequence != position)
+			{
+				dropped.increment();
+				return;
+			}
+			if (head.compareAndSet(position, position + 1))
+			{ break; }
+		}
+
+		record.level = level;
+		record.subsystem = subsystem;
+		record.format = format;
+		record.numArgs = numArgs;
+		record.arg1 = arg1;
+		record.arg2 = arg2;
+		record.arg3 = arg3;
+		record.sequence = position + 1;
+	}
+
+	/**
+	 * Start the thread that prints messages.
+	 */
+	private static synchronized void startWriter()
+	{
+		if (writer != null)
+		{ return; }
+		Thread thread = new Thread("Log writer")
+		{
+			public void run()
+			{
+				while (true)
+				{
+					if (!drain())
+					{ LockSupport.parkNanos(IDLE_NANOS); }
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		writer = thread;
+	}
+
+	/**
+	 * Print the messages in the ring buffer; only called by one thread at a
+	 * time.
+	 * @return true if any messages were printed
+	 */
+	private static synchronized boolean drain()
+	{
+		boolean printed = false;
+		while (true)
+		{
+			Record record = ring[(int)(tail & (CAPACITY - 1))];
+			if (record.sequence != tail + 1)
+			{ break; }
+
+			String message;
+			try
+			{
+				switch (record.numArgs)
+				{
+				case 0:
+					message = record.format;
+					break;
+				case 1:
+					message = String.format(record.format, record.arg1);
+					break;
+				case 2:
+					message = String.format(record.format, record.arg1,
+							record.arg2);
+					break;
+				default:
+					message = String.format(record.format, record.arg1,
+							record.arg2, record.arg3);
+				}
+			}
+			catch (RuntimeException e)
+			{ message = record.format + " (" + e + ")"; }
+			System.out.println(record.level + " " + record.subsystem + ": "
+					+ message);
+
+			// Hand the slot back for the lap after this one
+			record.format = null;
+			record.arg1 = null;
+			record.arg2 = null;
+			record.arg3 = null;
+			record.sequence = tail + CAPACITY;
+			tail++;
+			printed = true;
+		}
+		if (printed)
+		{ System.out.flush(); }
+		return printed;
+	}
+
+	/**
+	 * @return number of messages dropped because the buffer was full
+	 */
+	public static long getDropped()
+	{ return dropped.sum(); }
+
+	/**
+	 * Print the messages in the ring buffer now, and report how many were
+	 * dropped.
+	 */
+	public static void flush()
+	{
+		drain();
+		long lost = getDropped();
+		if (lost > 0)
+		{ System.out.println(String.format("Log: %d messages dropped", lost)); }
+	}
+}
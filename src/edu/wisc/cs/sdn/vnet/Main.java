@@ -1,5 +1,12 @@
 package edu.wisc.cs.sdn.vnet;
 
+import java.io.File;
+
+import edu.wisc.cs.sdn.vnet.rt.ArpCache;
+import edu.wisc.cs.sdn.vnet.rt.ArpRequestLimiter;
+import edu.wisc.cs.sdn.vnet.rt.NegativeArpCache;
+import edu.wisc.cs.sdn.vnet.rt.PendingPackets;
+import edu.wisc.cs.sdn.vnet.rt.RouteTable;
 import edu.wisc.cs.sdn.vnet.rt.Router;
 import edu.wisc.cs.sdn.vnet.sw.Switch;
 import edu.wisc.cs.sdn.vnet.vns.Command;
@@ -15,7 +22,23 @@ public class Main
 		String host = null;
 		String server = DEFAULT_SERVER;
 		String routeTableFile = null;
+		String fibEngine = null;
+		String binaryFibFile = null;
+		String saveFibFile = null;
+		int routeCacheSize = RouteTable.DEFAULT_CACHE_SIZE;
 		String arpCacheFile = null;
+		long arpReachableTimeout = ArpCache.DEFAULT_REACHABLE_TIMEOUT;
+		long arpStaleTimeout = ArpCache.DEFAULT_STALE_TIMEOUT;
+		int arpRefreshRate = ArpCache.DEFAULT_REFRESH_RATE;
+		int pendingNeighborLimit = PendingPackets.DEFAULT_NEIGHBOR_LIMIT;
+		int pendingGlobalLimit = PendingPackets.DEFAULT_GLOBAL_LIMIT;
+		PendingPackets.DropPolicy pendingDropPolicy = 
+				PendingPackets.DropPolicy.NEWEST;
+		long arpHoldDown = NegativeArpCache.DEFAULT_HOLD_DOWN;
+		int unreachableRate = NegativeArpCache.DEFAULT_UNREACHABLE_RATE;
+		int arpRequestRate = ArpRequestLimiter.DEFAULT_RATE;
+		String checkpointFile = null;
+		long checkpointInterval = Checkpoint.DEFAULT_INTERVAL;
 		String logfile = null;
 		short port = DEFAULT_PORT;
 		VNSComm vnsComm = null;
@@ -40,8 +63,52 @@ public class Main
 			{ logfile = args[++i]; }
 			else if (arg.equals("-r"))
 			{ routeTableFile = args[++i]; }
+			else if (arg.equals("-b"))
+			{ binaryFibFile = args[++i]; }
+			else if (arg.equals("-w"))
+			{ saveFibFile = args[++i]; }
+			else if (arg.equals("-f"))
+			{ fibEngine = args[++i]; }
+			else if (arg.equals("-c"))
+			{ routeCacheSize = Integer.parseInt(args[++i]); }
 			else if (arg.equals("-a"))
 			{ arpCacheFile = args[++i]; }
+			else if (arg.equals("-t"))
+			{ arpReachableTimeout = Long.parseLong(args[++i]) * 1000; }
+			else if (arg.equals("-T"))
+			{ arpStaleTimeout = Long.parseLong(args[++i]) * 1000; }
+			else if (arg.equals("-R"))
+			{ arpRefreshRate = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-q"))
+			{ pendingNeighborLimit = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-Q"))
+			{ pendingGlobalLimit = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-d"))
+			{
+				pendingDropPolicy = PendingPackets.DropPolicy.valueOf(
+						args[++i].toUpperCase());
+			}
+			else if (arg.equals("-H"))
+			{ arpHoldDown = Long.parseLong(args[++i]) * 1000; }
+			else if (arg.equals("-u"))
+			{ unreachableRate = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-A"))
+			{ arpRequestRate = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-L"))
+			{
+				if (!Log.configure(args[++i]))
+				{
+					System.err.println("Invalid log levels "+args[i]);
+					usage();
+					return;
+				}
+			}
+			else if (arg.equals("-S"))
+			{ Log.setSampleRate(Integer.parseInt(args[++i])); }
+			else if (arg.equals("-k"))
+			{ checkpointFile = args[++i]; }
+			else if (arg.equals("-K"))
+			{ checkpointInterval = Long.parseLong(args[++i]) * 1000; }
 		}
 		
 		if (null == host)
@@ -85,29 +152,101 @@ public class Main
 		
 		if (dev instanceof Router) 
 		{
+			// Select route lookup engine
+			if (fibEngine != null 
+					&& !((Router)dev).getRouteTable().setEngine(fibEngine))
+			{
+				System.err.println("Unknown route lookup engine "+fibEngine);
+				System.exit(1);
+			}
+			((Router)dev).getRouteTable().setCacheSize(routeCacheSize);
+			
 			// Read static route table
 			if (routeTableFile != null)
 			{ ((Router)dev).loadRouteTable(routeTableFile); }
 			
+			// Read compiled route table
+			if (binaryFibFile != null)
+			{ ((Router)dev).loadBinaryRouteTable(binaryFibFile); }
+			
+			// Write compiled route table for faster startup next time
+			if (saveFibFile != null)
+			{ ((Router)dev).saveRouteTable(saveFibFile); }
+			
+			((Router)dev).getArpCache().setTimeouts(arpReachableTimeout,
+					arpStaleTimeout);
+			((Router)dev).getArpCache().setRefreshRate(arpRefreshRate);
+			((Router)dev).getPendingPackets().setLimits(pendingNeighborLimit,
+					pendingGlobalLimit, pendingDropPolicy);
+			((Router)dev).getNegativeArpCache().setHoldDown(arpHoldDown);
+			((Router)dev).getNegativeArpCache().setUnreachableRate(
+					unreachableRate);
+			((Router)dev).getArpRequestLimiter().setRate(arpRequestRate);
+			
 			// Read static ACP cache
 			if (arpCacheFile != null)
 			{ ((Router)dev).loadArpCache(arpCacheFile); }
 		}
 
+		// Restore learned state from before a restart, and keep saving it
+		Checkpoint checkpoint = null;
+		if (checkpointFile != null)
+		{
+			if (new File(checkpointFile).exists())
+			{ Checkpoint.read(dev, checkpointFile); }
+			checkpoint = new Checkpoint(dev, checkpointFile);
+			if (checkpointInterval > 0)
+			{ checkpoint.start(checkpointInterval); }
+		}
+		
 		// Read messages from the server until the server closes the connection
 		System.out.println("<-- Ready to process packets -->");
 		while (vnsComm.readFromServer());
 		
+		// Save learned state one last time
+		if (checkpoint != null)
+		{ checkpoint.stop(); }
+		
 		// Shutdown the router
 		dev.destroy();
+		Log.flush();
 	}
 	
 	static void usage()
 	{
 		System.out.println("Virtual Network Client");
 		System.out.println("VNet -v host [-s server] [-p port] [-h]");
-		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file]");
+		System.out.println("     [-r routing_table] [-b binary_fib] [-w save_binary_fib]");
+		System.out.println("     [-f trie|dir248] [-c route_cache_size]");
+		System.out.println("     [-a arp_cache] [-t arp_reachable_secs] [-T arp_stale_secs]");
+		System.out.println("     [-R arp_refreshes_per_sec]");
+		System.out.println("     [-q pending_per_neighbor] [-Q pending_total] [-d newest|oldest]");
+		System.out.println("     [-H arp_hold_down_secs] [-u unreachable_per_sec]");
+		System.out.println("     [-A arp_requests_per_sec] [-k checkpoint_file] [-K checkpoint_secs]");
+		System.out.println("     [-L [subsystem=]level,...] [-S log_1_in_n_packets] [-l log_file]");
 		System.out.println(String.format("  defaults server=%s port=%d", 
 				DEFAULT_SERVER, DEFAULT_PORT));
+		System.out.println(String.format("  route_cache_size=%d (0 disables)",
+				RouteTable.DEFAULT_CACHE_SIZE));
+		System.out.println(String.format(
+				"  arp_reachable_secs=%d arp_stale_secs=%d arp_refreshes_per_sec=%d",
+				ArpCache.DEFAULT_REACHABLE_TIMEOUT / 1000,
+				ArpCache.DEFAULT_STALE_TIMEOUT / 1000,
+				ArpCache.DEFAULT_REFRESH_RATE));
+		System.out.println(String.format(
+				"  pending_per_neighbor=%d pending_total=%d drop=newest",
+				PendingPackets.DEFAULT_NEIGHBOR_LIMIT,
+				PendingPackets.DEFAULT_GLOBAL_LIMIT));
+		System.out.println(String.format(
+				"  arp_hold_down_secs=%d (0 disables) unreachable_per_sec=%d",
+				NegativeArpCache.DEFAULT_HOLD_DOWN / 1000,
+				NegativeArpCache.DEFAULT_UNREACHABLE_RATE));
+		System.out.println(String.format(
+				"  levels off|error|warn|info|debug (default %s), subsystems router|arp|route|switch|vns",
+				Log.DEFAULT_LEVEL.toString().toLowerCase()));
+		System.out.println(String.format(
+				"  arp_requests_per_sec=%d checkpoint_secs=%d (0 saves on exit only)",
+				ArpRequestLimiter.DEFAULT_RATE,
+				Checkpoint.DEFAULT_INTERVAL / 1000));
 	}
 }
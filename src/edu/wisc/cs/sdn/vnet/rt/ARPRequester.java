@@ -1,108 +1,310 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.wisc.cs.sdn.vnet.Iface;
-import net.floodlightcontroller.packet.ARP;
 import net.floodlightcontroller.packet.Ethernet;
-import net.floodlightcontroller.packet.ICMP;
 
-public class ARPRequester implements Runnable{
-	
+/**
+ * Resolves the MAC address of one next hop. Packets for the next hop wait
+ * in the requester while ARP requests are sent at fixed intervals; they are
+ * forwarded as soon as a reply arrives, or answered with ICMP destination
+ * host unreachable once all requests have gone unanswered, after which the
+ * next hop is held down in the router's {@link NegativeArpCache}.
+ * <p>
+ * Requesters do not have threads of their own. Retransmissions and the
+ * final timeout run on a scheduler shared by all requesters of a router,
+ * and replies are handled on the thread that receives them.
+ * <p>
+ * Requests are subject to the router's {@link ArpRequestLimiter}. A request
+ * held back by the limit is sent as soon as the limit allows, but the
+ * requester gives up at the same time regardless, so packets never wait
+ * longer than {@link #MAX_REQUESTS} request intervals.
+ * <p>
+ * Waiting packets are held in a lock-free queue. A single control word
+ * holds both the number of waiting packets and whether the requester is
+ * done, so a packet is either queued before the requester finishes, and
+ * then flushed or answered with it, or rejected and left to the caller.
+ */
+public class ARPRequester {
+
+	/** Number of ARP requests sent before giving up */
+	public static final int MAX_REQUESTS = 3;
+
+	/** Time (in milliseconds) between ARP requests; the requester gives
+	 *  up this many times {@link #MAX_REQUESTS} after it starts */
+	public static final long REQUEST_INTERVAL = 1000;
+
+	/** Results of adding a packet */
+	public static final int QUEUED = 0;
+	public static final int DROPPED = 1;
+	public static final int DONE = 2;
+
+	/** Bit of the control word set once the requester is done; the other
+	 *  bits count the packets in the queue */
+	private static final int DONE_BIT = 1 << 31;
+
+	/** A packet waiting for the next hop to be resolved */
+	private static final class Pending {
+		private final Ethernet packet;
+		private final Iface inIface;
+		private final byte[] srcMac;
+
+		/** Time (from System.nanoTime) the packet was queued */
+		private final long queuedNanos;
+
+		private Pending(Ethernet packet, Iface inIface, byte[] srcMac) {
+			this.packet=packet;
+			this.inIface=inIface;
+			this.srcMac=srcMac;
+			this.queuedNanos=System.nanoTime();
+		}
+	}
+
+	private int nextHopIp;
+	private Iface arpReqIface;
+
+	/** The ARP request to send; built when the requester starts */
 	private Ethernet etherARPReq;
-	private Iface arpRepIface, arpReqIface;
 	private Router rt;
-	private boolean done;
-	
-	private Queue<Ethernet> waiting;
-	private Queue<Iface> waitingIfaces;
-	private Queue<byte[]> waitingSrcMacs;
-	private Ethernet arpReply;
-
-	public ARPRequester(Ethernet etherARPReq, Iface arpReqIface, Router rt) {
-		this.etherARPReq=etherARPReq;
+	private PendingPackets table;
+
+	/** Number of requests sent, and the time (from
+	 *  System.currentTimeMillis) at which the requester gives up; only 
+	 *  changed by the scheduler after start */
+	private volatile int requestsSent;
+	private long deadline;
+
+	/** Time (from System.nanoTime) the requester was created, then
+	 *  restarted when the first request goes out */
+	private volatile long startNanos;
+
+	/** The pending retransmission or timeout */
+	private volatile ScheduledFuture<?> timeout;
+
+	/** Packets waiting for the next hop, and the control word */
+	private ConcurrentLinkedQueue<Pending> waiting;
+	private AtomicInteger control;
+
+	/**
+	 * Create a requester for a next hop.
+	 * @param nextHopIp IP address of the next hop
+	 * @param arpReqIface the interface to send the request out on
+	 * @param rt the router the requester belongs to
+	 * @param table the table of pending packets the requester belongs to
+	 */
+	public ARPRequester(int nextHopIp, Iface arpReqIface, Router rt,
+			PendingPackets table) {
+		this.nextHopIp=nextHopIp;
 		this.arpReqIface=arpReqIface;
 		this.rt=rt;
-		done=false;		
-		waiting=new LinkedList<Ethernet>();
-		waitingIfaces=new LinkedList<Iface>();
-		waitingSrcMacs=new LinkedList<byte[]>();
+		this.table=table;
+		this.requestsSent=0;
+		waiting=new ConcurrentLinkedQueue<Pending>();
+		control=new AtomicInteger(0);
+		startNanos=System.nanoTime();
 	}
-	
-	public boolean isDone(){
-		return done;
+
+	/**
+	 * @return IP address of the next hop
+	 */
+	public int getNextHopIp(){
+		return nextHopIp;
 	}
-	
-	//The reply to be set when an ARP reply is recived for this requester by the router
-	public void setReply(Ethernet arpReply, Iface arpRepIface){
-		this.arpRepIface=arpRepIface;
-		this.arpReply=arpReply;
-		done=true;
+
+	/**
+	 * @return true once the next hop has been resolved or given up on
+	 */
+	public boolean isDone(){
+		return (control.get() & DONE_BIT) != 0;
 	}
-	
-	//Add a packet to the queue of waiting packets
-	public void add(Ethernet packet, Iface inIface, byte[] srcMac)
+
+	/**
+	 * Add a packet to the queue of waiting packets, subject to the limits
+	 * of the table of pending packets.
+	 * @param packet the packet, ready to send except for its destination MAC
+	 * @param inIface the interface the packet arrived on
+	 * @param srcMac the packet's original source MAC
+	 * @return {@link #QUEUED} if the packet was queued; {@link #DROPPED} if
+	 *         it was dropped because of the limits; {@link #DONE} if the
+	 *         requester is done and the packet must be handled elsewhere
+	 */
+	public int add(Ethernet packet, Iface inIface, byte[] srcMac)
 	{
-		waiting.add(packet);
-		waitingIfaces.add(inIface);
-		waitingSrcMacs.add(srcMac);
+		Pending pending = new Pending(packet, inIface, srcMac);
+		while(true)
+		{
+			int c = control.get();
+			if((c & DONE_BIT) != 0)
+				return DONE;
+
+			//Room in this next hop's queue
+			if(c < table.getNeighborLimit())
+			{
+				if(!table.reserve())
+				{
+					table.countDropped(1);
+					return DROPPED;
+				}
+				if(control.compareAndSet(c, c + 1))
+				{
+					waiting.add(pending);
+					table.countEnqueued();
+					return QUEUED;
+				}
+				table.release(1);
+				continue;
+			}
+
+			//Queue full: drop the new packet, or swap it for the oldest one
+			if(table.getDropPolicy() == PendingPackets.DropPolicy.NEWEST)
+			{
+				table.countDropped(1);
+				return DROPPED;
+			}
+			if(waiting.poll() == null)
+			{
+				//Another thread is between taking and adding a packet
+				Thread.onSpinWait();
+				continue;
+			}
+			waiting.add(pending);
+			table.countEnqueued();
+			table.countDropped(1);
+			return QUEUED;
+		}
 	}
 
-	
-	public void run() {
-		int count=0;
-		//Send 3 ARP requests in one second intervals	
-		while(count<3)
+	/**
+	 * Mark the requester done, so no more packets are queued.
+	 * @return number of packets in the queue, -1 if it was already done
+	 */
+	private int finish()
+	{
+		while(true)
 		{
-			//send ARPrequest
-			rt.sendPacket(etherARPReq, arpReqIface);
-			
-			//wait 1 second, should not be interrupted
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+			int c = control.get();
+			if((c & DONE_BIT) != 0)
+				return -1;
+			if(control.compareAndSet(c, c | DONE_BIT))
+				return c;
+		}
+	}
+
+	/**
+	 * Take the next packet from the queue of a finished requester; packets
+	 * counted in the control word may not have been added yet.
+	 */
+	private Pending take()
+	{
+		Pending pending;
+		while((pending = waiting.poll()) == null)
+			Thread.onSpinWait();
+		return pending;
+	}
+
+	/**
+	 * Send the first ARP request and schedule the retransmissions.
+	 * @param scheduler runs retransmissions and the final timeout
+	 */
+	public void start(ScheduledExecutorService scheduler) {
+		etherARPReq = rt.genArpRequest(nextHopIp, arpReqIface);
+		startNanos = System.nanoTime();
+		deadline = System.currentTimeMillis() + MAX_REQUESTS * REQUEST_INTERVAL;
+		step(scheduler);
+	}
+
+	/**
+	 * Send an ARP request if more are due and the rate limit allows, and
+	 * schedule the next step; give up once the deadline has passed.
+	 */
+	private void step(final ScheduledExecutorService scheduler) {
+		if(isDone())
+			return;
+		long left = deadline - System.currentTimeMillis();
+		if(left <= 0) {
+			giveUp();
+			return;
+		}
+
+		//Wait out the interval after a request, or until the limit allows one
+		long wait = left;
+		if(requestsSent < MAX_REQUESTS) {
+			long held = rt.getArpRequestLimiter().acquire(arpReqIface);
+			if(held == 0) {
+				rt.sendPacket(etherARPReq, arpReqIface);
+				requestsSent++;
+				wait = REQUEST_INTERVAL;
 			}
-			count++;
-			if(done)
-				break;
+			else if(held > 0)
+				wait = held;
 		}
-		
-		done=true;
+		timeout = scheduler.schedule(new Runnable() {
+			public void run() {
+				step(scheduler);
+			}
+		}, Math.min(wait, left), TimeUnit.MILLISECONDS);
+	}
 
-		////If the ARP reply made it in time, forward the queued packets to their next hop
-		if(arpReply!=null)
+	/**
+	 * Give up on the next hop: answer the queued packets with ICMP
+	 * destination host unreachable.
+	 */
+	private void giveUp() {
+		int count = finish();
+		if(count < 0)
+			return;
+
+		//Hold the IP down before leaving the table, so later packets do not start resolving it again
+		rt.getNegativeArpCache().add(nextHopIp);
+		table.remove(this);
+
+		//Reply back with ICMP Dest Host Unreachable to each of the hosts who send a packet for this IP
+		for(int i = 0; i < count; i++)
 		{
-			ARP arp=(ARP) arpReply.getPayload();
-			while(!waiting.isEmpty())
-			{
-				Ethernet etherPacket=waiting.poll();
-				etherPacket.setDestinationMACAddress(arp.getSenderHardwareAddress());
-				rt.sendPacket(etherPacket, arpRepIface);//send the packets forward on the iface the arpReply came in
-			}
+			Pending pending = take();
+			rt.sendHostUnreachable(pending.packet, pending.inIface, pending.srcMac);
 		}
-		//Else reply back with ICMP Dest Host Unreachable to each of the hosts who send a packet for this IP
-		else
+		table.release(count);
+		table.countDropped(count);
+		rt.getArpStats().timedOut(arpReqIface, nextHopIp, requestsSent, count);
+	}
+
+	/**
+	 * Handle the ARP reply for the next hop: forward the queued packets
+	 * right away.
+	 * @param mac MAC address of the next hop
+	 * @param arpRepIface the interface the reply arrived on
+	 * @return true if the reply was used, false if the requester was
+	 *         already done
+	 */
+	public boolean setReply(byte[] mac, Iface arpRepIface){
+		int count = finish();
+		if(count < 0)
+			return false;
+		ScheduledFuture<?> timeout = this.timeout;
+		if(timeout != null)
+			timeout.cancel(false);
+
+		//Forward the queued packets to their next hop
+		long now = System.nanoTime();
+		ArpStats.Interface stats = rt.getArpStats().get(arpReqIface);
+		for(int i = 0; i < count; i++)
 		{
-			while(!waiting.isEmpty())
-			{		
-				//Get packet, inIface and originalSrcMAC
-				Ethernet etherPacket=waiting.poll();
-				Iface inIface = waitingIfaces.poll();
-				byte[] origSrcMAC = waitingSrcMacs.poll();
-				
-				//Generate ICMP dest host for each packet
-				Ethernet etherICMP= rt.genICMPTimeExceeded(etherPacket,inIface, origSrcMAC);
-				ICMP icmp=(ICMP) etherICMP.getPayload().getPayload();
-				icmp.setIcmpType((byte)3);
-				icmp.setIcmpCode((byte)1);
-				
-				rt.sendPacket(etherICMP, inIface);
-			}
+			Pending pending = take();
+			stats.getWait().record(now - pending.queuedNanos);
+			Ethernet etherPacket=pending.packet;
+			etherPacket.setDestinationMACAddress(mac);
+			rt.sendPacket(etherPacket, arpRepIface);//send the packets forward on the iface the arpReply came in
 		}
-		return;
+		table.release(count);
+		table.countFlushed(count);
+		rt.getArpStats().resolved(arpReqIface, nextHopIp, now - startNanos, requestsSent, count);
+		return true;
 	}
-	
+
 }
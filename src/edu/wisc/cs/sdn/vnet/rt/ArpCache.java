@@ -1,136 +1,564 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
-import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
 
 /**
  * A cache of MAC address to IP address mappings.
+ * <p>
+ * Entries loaded from a file are static and never expire. Entries learned
+ * from ARP replies are reachable for a while after they are last learned,
+ * then stale for a while longer, and then removed; stale entries are still
+ * used. Learning a reachable entry again with the same MAC address only
+ * records the time, so each entry has a single expiry timer at a time.
+ * Shortly before a learned entry that has been used changes state, the 
+ * cache asks its {@link Refresher} to confirm the mapping, at a limited 
+ * rate, so that busy neighbors never drop out of the cache. Learned 
+ * entries can be saved with their ages and restored after a restart.
  * @author Aaron Gember-Jacobson
  */
 public class ArpCache
 {		
-	/** Entries in the cache; maps an IP address to an entry */
-	private Map<Integer,ArpEntry> entries;
+	/**
+	 * Confirms mappings that are about to change state.
+	 */
+	public interface Refresher
+	{
+		/**
+		 * Ask a neighbor to confirm its mapping, typically by sending it a
+		 * unicast ARP request; a reply should be inserted in the cache.
+		 * @param ip IP address of the neighbor
+		 * @param mac MAC address the cache has for the neighbor
+		 */
+		void refresh(int ip, long mac);
+	}
+	
+	/**
+	 * Collects the learned entries of the table.
+	 */
+	private static final class LearnedEntries implements ArpTable.Visitor
+	{
+		private int count = 0;
+		private int[] ips = new int[64];
+		private long[] values = new long[64];
+		
+		public void visit(int ip, long value)
+		{
+			if ((value & STATIC) != 0)
+			{ return; }
+			if (this.count == this.ips.length)
+			{
+				this.ips = Arrays.copyOf(this.ips, 2 * this.count);
+				this.values = Arrays.copyOf(this.values, 2 * this.count);
+			}
+			this.ips[this.count] = ip;
+			this.values[this.count] = value;
+			this.count++;
+		}
+	}
+	
+	/** Value returned by {@link #lookupMac(int)} for IP addresses that are
+	 *  not in the cache */
+	public static final long NO_MAC = ArpTable.NONE;
+	
+	/** Default time (in milliseconds) learned entries stay reachable */
+	public static final long DEFAULT_REACHABLE_TIMEOUT = 30000;
+	
+	/** Default time (in milliseconds) learned entries stay stale before
+	 *  they are removed */
+	public static final long DEFAULT_STALE_TIMEOUT = 60000;
+	
+	/** Default maximum number of refreshes per second */
+	public static final int DEFAULT_REFRESH_RATE = 50;
+	
+	/** Time (in milliseconds) before a state change that a used entry is 
+	 *  refreshed; at most half of the time the entry spends in a state */
+	private static final long REFRESH_LEAD = 3000;
+	
+	/** Bits of the values in the table of entries that hold the MAC 
+	 *  address */
+	private static final long MAC_MASK = 0xFFFFFFFFFFFFL;
+	
+	/** Flags kept in the high bits of the values in the table of entries;
+	 *  USED is set by the first lookup of a learned entry in each state */
+	private static final long STATIC = 1L << 48;
+	private static final long STALE = 1L << 49;
+	private static final long USED = 1L << 50;
+	
+	/** Length of a tick and number of buckets of the expiry timing wheel */
+	private static final long TICK_MILLIS = 100;
+	private static final int NUM_BUCKETS = 512;
+	
+	/** Entries in the cache; maps an IP address to a MAC address and flags */
+	private ArpTable entries;
+	
+	/** Time (from System.currentTimeMillis) each learned entry was last
+	 *  learned; a reachable entry stays reachable until the reachable 
+	 *  timeout after it */
+	private ArpTable learned;
+	
+	/** Generation of each learned entry: a new one whenever an entry is 
+	 *  learned with a new MAC address or after it went stale, so expiry 
+	 *  timers of earlier generations can tell they no longer apply; also 
+	 *  guards changes to learned entries */
+	private ArpTable generations;
+	
+	/** Times (in milliseconds) learned entries stay reachable and stale */
+	private volatile long reachableTimeout;
+	private volatile long staleTimeout;
+	
+	/** Expires learned entries */
+	private TimingWheel wheel;
+	
+	/** Source of generations for learned entries; never repeats */
+	private AtomicLong nextGeneration;
+	
+	/** Confirms used entries before they change state; null if entries
+	 *  are not refreshed */
+	private volatile Refresher refresher;
+	
+	/** Limits the refreshes sent */
+	private TokenBucket refreshLimit;
+	
+	/** Number of refreshes sent, and skipped because of the rate limit */
+	private volatile long refreshes;
+	private volatile long refreshesSkipped;
 	
 	/**
 	 * Initializes an empty ARP cache for a router.
 	 */
 	public ArpCache()
-	{ this.entries = new ConcurrentHashMap<Integer,ArpEntry>(); }
+	{
+		this.entries = new ArpTable();
+		this.learned = new ArpTable();
+		this.generations = new ArpTable();
+		this.reachableTimeout = DEFAULT_REACHABLE_TIMEOUT;
+		this.staleTimeout = DEFAULT_STALE_TIMEOUT;
+		this.wheel = new TimingWheel("ARP cache expiry", TICK_MILLIS,
+				NUM_BUCKETS);
+		this.nextGeneration = new AtomicLong();
+		this.refresher = null;
+		this.refreshLimit = new TokenBucket(DEFAULT_REFRESH_RATE);
+	}
+	
+	/**
+	 * Set what confirms used entries before they change state.
+	 * @param refresher confirms mappings; null to stop refreshing
+	 */
+	public void setRefresher(Refresher refresher)
+	{ this.refresher = refresher; }
+	
+	/**
+	 * Limit how often entries are refreshed; used entries beyond the limit
+	 * change state without being refreshed.
+	 * @param refreshRate maximum number of refreshes per second
+	 */
+	public void setRefreshRate(int refreshRate)
+	{ this.refreshLimit.setRate(refreshRate); }
+	
+	/**
+	 * @return number of refreshes sent
+	 */
+	public long getRefreshes()
+	{ return this.refreshes; }
+	
+	/**
+	 * @return number of refreshes not sent because of the rate limit
+	 */
+	public long getRefreshesSkipped()
+	{ return this.refreshesSkipped; }
+	
+	/**
+	 * Set how long learned entries are kept. Entries take the new timeouts
+	 * from their next change of state.
+	 * @param reachableTimeout time (in milliseconds) learned entries stay
+	 *        reachable
+	 * @param staleTimeout time (in milliseconds) learned entries stay stale
+	 *        once they are no longer reachable
+	 */
+	public void setTimeouts(long reachableTimeout, long staleTimeout)
+	{
+		this.reachableTimeout = reachableTimeout;
+		this.staleTimeout = staleTimeout;
+	}
 	
 	/**
 	 * Insert an entry in the ARP cache for a specific IP address, MAC address
-	 * pair.
+	 * pair. The entry expires unless it is learned again; static entries 
+	 * for the IP address take precedence.
 	 * @param mac MAC address corresponding to IP address
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public void insert(MACAddress mac, int ip)
-	{ this.entries.put(ip, new ArpEntry(mac, ip)); }
+	{
+		long value = mac.toLong();
+		if (this.confirm(ip, value))
+		{ return; }
+		synchronized(this.generations)
+		{
+			long old = this.entries.get(ip);
+			if (old != NO_MAC && (old & STATIC) != 0)
+			{ return; }
+			this.learned.put(ip, System.currentTimeMillis());
+			
+			// A reachable entry with the same MAC address keeps its timer,
+			// which sees the new time and waits longer
+			if (old != NO_MAC && (old & ~USED) == value)
+			{ return; }
+			
+			long generation = this.nextGeneration.incrementAndGet();
+			this.generations.put(ip, generation);
+			this.entries.put(ip, value);
+			this.scheduleExpiry(ip, value, generation, this.reachableTimeout);
+		}
+	}
 	
 	/**
-	 * Checks if an IP->MAC mapping is the in the cache.
-	 * @param ip IP address whose MAC address is desired
-	 * @return the IP->MAC mapping from the cache; null if none exists 
+	 * Record that a learned mapping has been heard again, if the entry is
+	 * reachable and has the same MAC address. Only the time is updated; the
+	 * entry is neither replaced nor scheduled again, and no lock is taken.
+	 * @param ip IP address
+	 * @param mac MAC address in the low 48 bits
+	 * @return true if the entry was confirmed; false if it must be inserted
 	 */
-	public ArpEntry lookup(int ip)
-	{ return this.entries.get(ip); }
+	public boolean confirm(int ip, long mac)
+	{
+		long value = this.entries.get(ip);
+		if (NO_MAC == value || (value & ~USED) != mac)
+		{ return false; }
+		this.learned.put(ip, System.currentTimeMillis());
+		return true;
+	}
 	
 	/**
-	 * Populate the ARP cache from a file.
-	 * @param filename name of the file containing the static route table
-	 * @param router the route table is associated with
-	 * @return true if route table was successfully loaded, otherwise false
+	 * Arrange for a learned entry to be refreshed if it is used, and then
+	 * to move on to its next state: from reachable to stale, or from stale
+	 * to removed. A reachable entry learned again in the meantime is 
+	 * scheduled again for the rest of its reachable time instead.
+	 * @param ip IP address of the entry
+	 * @param value value of the entry in the table, without the used flag,
+	 *        when it was scheduled
+	 * @param generation generation of the entry; nothing happens if the 
+	 *        entry has been learned anew or removed since
+	 * @param delay time (in milliseconds) until the entry changes state
 	 */
-	public boolean load(String filename)
+	private void scheduleExpiry(final int ip, final long value, 
+			final long generation, long delay)
 	{
-		// Open the file
-		BufferedReader reader;
-		try 
+		final long lead = Math.min(REFRESH_LEAD, delay / 2);
+		final Runnable expire = new Runnable()
 		{
-			FileReader fileReader = new FileReader(filename);
-			reader = new BufferedReader(fileReader);
-		}
-		catch (FileNotFoundException e) 
+			public void run()
+			{ advance(ip, value, generation, 0); }
+		};
+		this.wheel.schedule(delay - lead, new Runnable()
 		{
-			System.err.println(e.toString());
-			return false;
-		}
-		
-		while (true)
+			public void run()
+			{
+				if (refresh(ip, value, generation, lead))
+				{ wheel.schedule(lead, expire); }
+			}
+		});
+	}
+	
+	/**
+	 * Checks whether a learned entry is still the one a timer was set for.
+	 * Must be called with the learned entries locked.
+	 * @return the current value of the entry, or {@link #NO_MAC} if it has
+	 *         been learned anew or removed since
+	 */
+	private long current(int ip, long value, long generation)
+	{
+		if (this.generations.get(ip) != generation)
+		{ return NO_MAC; }
+		long current = this.entries.get(ip);
+		if (NO_MAC == current || (current & ~USED) != value)
+		{ return NO_MAC; }
+		return current;
+	}
+	
+	/**
+	 * Move a learned entry on to its next state, unless it is reachable and
+	 * has been learned again less than the reachable timeout ago, in which
+	 * case it is scheduled again for the rest of that time.
+	 * @param ip IP address of the entry
+	 * @param value expected value of the entry, without the used flag
+	 * @param generation expected generation of the entry
+	 * @param lead time (in milliseconds) the state change is still ahead;
+	 *        an entry with no more than that left is not scheduled again
+	 * @return true if the entry will change state, false if it has been
+	 *         scheduled again or is no longer the expected entry
+	 */
+	private boolean advance(int ip, long value, long generation, long lead)
+	{
+		synchronized(this.generations)
 		{
-			// Read an ARP entry from the file
-			String line = null;
-			try 
-			{ line = reader.readLine(); }
-			catch (IOException e) 
+			long current = this.current(ip, value, generation);
+			if (NO_MAC == current)
+			{ return false; }
+			if (0 == (value & STALE))
 			{
-				System.err.println(e.toString());
-				try { reader.close(); } catch (IOException f) {};
-				return false;
+				long remaining = this.learned.get(ip) + this.reachableTimeout
+						- System.currentTimeMillis();
+				if (remaining > lead + TICK_MILLIS)
+				{
+					this.scheduleExpiry(ip, value, generation, remaining);
+					return false;
+				}
 			}
+			if (lead > 0)
+			{ return true; }
 			
-			// Stop if we have reached the end of the file
-			if (null == line)
-			{ break; }
-			
-			// Parse fields for ARP entry
-			String ipPattern = "(\\d+\\.\\d+\\.\\d+\\.\\d+)";
-			String macByte = "[a-fA-F0-9]{2}";
-			String macPattern = "("+macByte+":"+macByte+":"+macByte
-					+":"+macByte+":"+macByte+":"+macByte+")";
-			Pattern pattern = Pattern.compile(String.format(
-                        "%s\\s+%s", ipPattern, macPattern));
-			Matcher matcher = pattern.matcher(line);
-			if (!matcher.matches() || matcher.groupCount() != 2)
+			if (0 == (value & STALE))
 			{
-				System.err.println("Invalid entry in ARP cache file");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
+				long stale = value | STALE;
+				if (this.transition(ip, value, stale))
+				{ this.scheduleExpiry(ip, stale, generation, this.staleTimeout); }
 			}
-
-			int ip = IPv4.toIPv4Address(matcher.group(1));
-			if (0 == ip)
+			else if (this.transition(ip, value, NO_MAC))
 			{
-				System.err.println("Error loading ARP cache, cannot convert "
-						+ matcher.group(1) + " to valid IP");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
+				this.learned.remove(ip);
+				this.generations.remove(ip);
 			}
-			
-			MACAddress mac = null;
-			try
-			{ mac = MACAddress.valueOf(matcher.group(2)); }
-			catch(IllegalArgumentException iae)
+			return true;
+		}
+	}
+	
+	/**
+	 * Change the value of a learned entry, whether or not it has been used.
+	 * Must be called with the learned entries locked.
+	 * @param ip IP address of the entry
+	 * @param value expected value of the entry, without the used flag
+	 * @param next new value of the entry, {@link #NO_MAC} to remove it
+	 * @return true if the entry had the expected value and was changed
+	 */
+	private boolean transition(int ip, long value, long next)
+	{
+		while (true)
+		{
+			long current = this.entries.get(ip);
+			if (NO_MAC == current || (current & ~USED) != value)
+			{ return false; }
+			boolean changed = (NO_MAC == next)
+					? this.entries.remove(ip, current)
+					: this.entries.replace(ip, current, next);
+			if (changed)
+			{ return true; }
+		}
+	}
+	
+	/**
+	 * Refresh a learned entry that is about to change state if it has been
+	 * used since it entered its current state and the rate limit allows.
+	 * @param ip IP address of the entry
+	 * @param value expected value of the entry, without the used flag
+	 * @param generation expected generation of the entry
+	 * @param lead time (in milliseconds) until the entry changes state
+	 * @return true if the entry will change state after the lead time
+	 */
+	private boolean refresh(int ip, long value, long generation, long lead)
+	{
+		Refresher refresher;
+		synchronized(this.generations)
+		{
+			if (!this.advance(ip, value, generation, lead))
+			{ return false; }
+			long current = this.entries.get(ip);
+			refresher = this.refresher;
+			if (0 == (current & USED) || null == refresher)
+			{ return true; }
+			if (this.refreshLimit.take() != 0)
 			{
-				System.err.println("Error loading ARP cache, cannot convert " 
-						+ matcher.group(3) + " to valid MAC");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
+				this.refreshesSkipped++;
+				return true;
 			}
 			
-			// Add an entry to the ACP cache
-			this.insert(mac, ip);
+			// Clear the used flag, so only later use triggers another refresh
+			if (!this.entries.replace(ip, current, value))
+			{ return true; }
+			this.refreshes++;
+		}
+		refresher.refresh(ip, value & MAC_MASK);
+		return true;
+	}
+	
+	/**
+	 * Checks whether the cache has a mapping for an IP address, without
+	 * counting as a use of the mapping.
+	 * @param ip IP address
+	 * @return true if the cache has a mapping for the IP address
+	 */
+	public boolean contains(int ip)
+	{ return (this.entries.get(ip) != NO_MAC); }
+	
+	/**
+	 * Write the learned entries and their ages to a checkpoint. Static 
+	 * entries are not written; they are loaded from their file again.
+	 * @param out the checkpoint
+	 */
+	public void save(DataOutputStream out) throws IOException
+	{
+		// Copy the entries out first; the table is locked while visiting
+		LearnedEntries copy = new LearnedEntries();
+		this.entries.forEach(copy);
+		
+		long now = System.currentTimeMillis();
+		out.writeInt(copy.count);
+		for (int i = 0; i < copy.count; i++)
+		{
+			int ip = copy.ips[i];
+			long value = copy.values[i];
+			long time = this.learned.get(ip);
+			long age;
+			if (time != ArpTable.NONE)
+			{ age = Math.max(0, now - time); }
+			else
+			{ age = ((value & STALE) != 0) ? this.reachableTimeout : 0; }
+			
+			long mac = value & MAC_MASK;
+			out.writeInt(ip);
+			out.writeShort((int)(mac >>> 32));
+			out.writeInt((int)mac);
+			out.writeInt((int)Math.min(Integer.MAX_VALUE, age));
+		}
+	}
+	
+	/**
+	 * Restore learned entries from a checkpoint written by {@link #save}.
+	 * Entries age by the time since the checkpoint was written; entries
+	 * that would have expired in the meantime are skipped, and static 
+	 * entries for the same IP addresses take precedence.
+	 * @param in the checkpoint
+	 * @param downtime time (in milliseconds) since the checkpoint was written
+	 * @return number of entries restored
+	 */
+	public int restore(DataInputStream in, long downtime) throws IOException
+	{
+		long reachableTimeout = this.reachableTimeout;
+		long staleTimeout = this.staleTimeout;
+		long now = System.currentTimeMillis();
+		int restored = 0;
+		int count = in.readInt();
+		for (int i = 0; i < count; i++)
+		{
+			int ip = in.readInt();
+			long mac = ((in.readShort() & 0xFFFFL) << 32)
+					| (in.readInt() & 0xFFFFFFFFL);
+			long age = in.readInt() + Math.max(0, downtime);
+			if (0 == ip || age >= reachableTimeout + staleTimeout)
+			{ continue; }
+			long old = this.entries.get(ip);
+			if (old != NO_MAC && (old & STATIC) != 0)
+			{ continue; }
+			
+			// Enter the state the entry would be in had there been no restart
+			long value = mac;
+			long delay = reachableTimeout - age;
+			if (age >= reachableTimeout)
+			{
+				value |= STALE;
+				delay += staleTimeout;
+			}
+			synchronized(this.generations)
+			{
+				long generation = this.nextGeneration.incrementAndGet();
+				this.generations.put(ip, generation);
+				this.entries.put(ip, value);
+				this.learned.put(ip, now - age);
+				this.scheduleExpiry(ip, value, generation, delay);
+			}
+			restored++;
 		}
+		return restored;
+	}
+	
+	/**
+	 * Stop expiring learned entries.
+	 */
+	public void destroy()
+	{ this.wheel.stop(); }
+	
+	/**
+	 * Checks if an IP->MAC mapping is the in the cache.
+	 * @param ip IP address whose MAC address is desired
+	 * @return the IP->MAC mapping from the cache; null if none exists 
+	 */
+	public ArpEntry lookup(int ip)
+	{
+		long mac = this.lookupMac(ip);
+		if (NO_MAC == mac)
+		{ return null; }
+		return new ArpEntry(MACAddress.valueOf(mac), ip);
+	}
 	
-		// Close the file
-		try { reader.close(); } catch (IOException f) {};
+	/**
+	 * Get the MAC address for an IP address without allocating. The lookup
+	 * counts as a use of the mapping.
+	 * @param ip IP address whose MAC address is desired
+	 * @return the MAC address in the low 48 bits; {@link #NO_MAC} if the
+	 *         cache has no mapping for the IP address
+	 */
+	public long lookupMac(int ip)
+	{
+		long value = this.entries.get(ip);
+		if (NO_MAC == value)
+		{ return NO_MAC; }
+		
+		// Only the first use in each state writes to the table
+		if (0 == (value & (USED | STATIC)))
+		{ this.entries.replace(ip, value, value | USED); }
+		return value & MAC_MASK;
+	}
+	
+	/**
+	 * Populate the ARP cache from a file.
+	 * @param filename name of the file containing the static route table
+	 * @param router the route table is associated with
+	 * @return true if route table was successfully loaded, otherwise false
+	 */
+	public boolean load(String filename)
+	{
+		TableFileParser<ArpEntry> parser = new TableFileParser<ArpEntry>()
+		{
+			protected ArpEntry parseLine(Cursor cursor) throws ParseException
+			{
+				// Parse fields for ARP entry
+				int ip = cursor.nextIp();
+				if (0 == ip)
+				{ throw new ParseException("invalid IP"); }
+				MACAddress mac = MACAddress.valueOf(cursor.nextMac());
+				return new ArpEntry(mac, ip);
+			}
+		};
+		
+		List<ArpEntry> loaded = parser.parse(filename, "ARP cache");
+		if (null == loaded)
+		{ return false; }
+		
+		// Add the entries to the ARP cache
+		for (ArpEntry entry : loaded)
+		{ this.entries.put(entry.getIp(), entry.getMac().toLong() | STATIC); }
 		return true;
 	}
 	
 	public String toString()
 	{
-        String result = "IP\t\tMAC\n";
-        for (ArpEntry entry : this.entries.values())
-        { result += entry.toString()+"\n"; }
-	    return result;
+        final StringBuilder result = new StringBuilder("IP\t\tMAC\n");
+        this.entries.forEach(new ArpTable.Visitor()
+        {
+            public void visit(int ip, long value)
+            {
+                ArpEntry entry = new ArpEntry(
+                        MACAddress.valueOf(value & MAC_MASK), ip);
+                result.append(entry.toString()).append("\n");
+            }
+        });
+	    return result.toString();
 	}
 }
@@ -0,0 +1,93 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Limits the number of ARP requests sent out of each interface per second,
+ * with a token bucket per interface. Requests that resolve next hops are
+ * held back until the limit allows them; refreshes of cached mappings are
+ * skipped.
+ */
+public class ArpRequestLimiter
+{
+	/** Default maximum number of ARP requests per second per interface */
+	public static final int DEFAULT_RATE = 100;
+
+	/** Token bucket of each interface, created on first use */
+	private ConcurrentHashMap<Iface,TokenBucket> buckets;
+
+	/** Maximum number of ARP requests per second per interface */
+	private volatile int rate;
+
+	/** Number of requests allowed, and held back or skipped */
+	private LongAdder allowed;
+	private LongAdder limited;
+
+	/**
+	 * Create a limiter with the default rate.
+	 */
+	public ArpRequestLimiter()
+	{
+		this.buckets = new ConcurrentHashMap<Iface,TokenBucket>();
+		this.rate = DEFAULT_RATE;
+		this.allowed = new LongAdder();
+		this.limited = new LongAdder();
+	}
+
+	/**
+	 * Set how many ARP requests may be sent out of each interface.
+	 * @param rate maximum number of requests per second per interface
+	 */
+	public void setRate(int rate)
+	{
+		this.rate = rate;
+		for (TokenBucket bucket : this.buckets.values())
+		{ bucket.setRate(rate); }
+	}
+
+	/**
+	 * Take the right to send an ARP request out of an interface.
+	 * @param iface the interface
+	 * @return 0 if the request may be sent now; otherwise the time (in
+	 *         milliseconds) until it may be, or -1 if requests may never be
+	 *         sent
+	 */
+	long acquire(Iface iface)
+	{
+		TokenBucket bucket = this.buckets.get(iface);
+		if (null == bucket)
+		{
+			bucket = new TokenBucket(this.rate);
+			TokenBucket existing = this.buckets.putIfAbsent(iface, bucket);
+			if (existing != null)
+			{ bucket = existing; }
+		}
+		long wait = bucket.take();
+		if (0 == wait)
+		{ this.allowed.increment(); }
+		else
+		{ this.limited.increment(); }
+		return wait;
+	}
+
+	/**
+	 * @return number of ARP requests allowed
+	 */
+	public long getAllowed()
+	{ return this.allowed.sum(); }
+
+	/**
+	 * @return number of times an ARP request was held back or skipped
+	 */
+	public long getLimited()
+	{ return this.limited.sum(); }
+
+	public String toString()
+	{
+		return String.format("ARP requests: %d sent, %d held back by the "
+				+ "rate limit", this.getAllowed(), this.getLimited());
+	}
+}
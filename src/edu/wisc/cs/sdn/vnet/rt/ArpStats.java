@@ -0,0 +1,303 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * Outcomes of ARP resolution: for every interface, how many next hops were
+ * resolved or timed out, how long resolution took and how long packets
+ * waited for it, how many requests each resolution needed, and the deepest
+ * queue of waiting packets; for every next hop, how many resolutions,
+ * timeouts and requests it has had.
+ * <p>
+ * Each resolution is recorded once, when it ends, without allocating;
+ * interfaces get their counters when they first resolve a next hop.
+ */
+public class ArpStats
+{
+	/**
+	 * Outcomes of ARP resolution on one interface.
+	 */
+	public static class Interface
+	{
+		private LongAdder resolved;
+		private LongAdder timedOut;
+
+		/** Time from the first request to the reply */
+		private LatencyHistogram latency;
+
+		/** Time packets waited before being sent on */
+		private LatencyHistogram wait;
+
+		/** Number of resolutions, successful or not, that sent each number
+		 *  of requests */
+		private AtomicLongArray requests;
+
+		/** Most packets waiting for one next hop */
+		private AtomicInteger peakQueueDepth;
+
+		private Interface()
+		{
+			this.resolved = new LongAdder();
+			this.timedOut = new LongAdder();
+			this.latency = new LatencyHistogram();
+			this.wait = new LatencyHistogram();
+			this.requests = new AtomicLongArray(
+					ARPRequester.MAX_REQUESTS + 1);
+			this.peakQueueDepth = new AtomicInteger();
+		}
+
+		/**
+		 * @return number of next hops resolved
+		 */
+		public long getResolved()
+		{ return this.resolved.sum(); }
+
+		/**
+		 * @return number of next hops that did not resolve
+		 */
+		public long getTimedOut()
+		{ return this.timedOut.sum(); }
+
+		/**
+		 * @return time from the first request to the reply of resolved next
+		 *         hops
+		 */
+		public LatencyHistogram getLatency()
+		{ return this.latency; }
+
+		/**
+		 * @return time packets waited for their next hop to be resolved
+		 */
+		public LatencyHistogram getWait()
+		{ return this.wait; }
+
+		/**
+		 * @param count number of requests
+		 * @return number of resolutions that sent that many requests
+		 */
+		public long getResolutionsWithRequests(int count)
+		{ return this.requests.get(count); }
+
+		/**
+		 * @return most packets that waited for one next hop
+		 */
+		public int getPeakQueueDepth()
+		{ return this.peakQueueDepth.get(); }
+
+		/**
+		 * Count a resolution that ended.
+		 */
+		private void finished(int requestsSent, int queueDepth)
+		{
+			this.requests.incrementAndGet(Math.min(requestsSent,
+					this.requests.length() - 1));
+			int peak = this.peakQueueDepth.get();
+			while (queueDepth > peak
+					&& !this.peakQueueDepth.compareAndSet(peak, queueDepth))
+			{ peak = this.peakQueueDepth.get(); }
+		}
+	}
+
+	/** Position and size of the counters packed in a next hop's value:
+	 *  resolutions, timeouts and requests; counters stop at their maximum */
+	private static final int RESOLVED_SHIFT = 0;
+	private static final int TIMED_OUT_SHIFT = 21;
+	private static final int REQUESTS_SHIFT = 42;
+	private static final long COUNTER_MASK = (1L << 21) - 1;
+
+	/** Most next hops counters are kept for; later ones are not counted,
+	 *  so scans of unused addresses cannot grow the table without bound */
+	private static final int MAX_NEIGHBORS = 65536;
+
+	/** Number of next hops listed by {@link #toString} */
+	private static final int WORST_NEIGHBORS = 5;
+
+	/** Outcomes on each interface, created on first use */
+	private ConcurrentHashMap<Iface,Interface> interfaces;
+
+	/** Counters of each next hop, packed in a long */
+	private ArpTable neighbors;
+	private AtomicInteger numNeighbors;
+
+	/**
+	 * Create empty statistics.
+	 */
+	public ArpStats()
+	{
+		this.interfaces = new ConcurrentHashMap<Iface,Interface>();
+		this.neighbors = new ArpTable();
+		this.numNeighbors = new AtomicInteger();
+	}
+
+	/**
+	 * @param iface an interface
+	 * @return outcomes of ARP resolution on the interface
+	 */
+	public Interface get(Iface iface)
+	{
+		Interface stats = this.interfaces.get(iface);
+		if (null == stats)
+		{
+			stats = new Interface();
+			Interface existing = this.interfaces.putIfAbsent(iface, stats);
+			if (existing != null)
+			{ stats = existing; }
+		}
+		return stats;
+	}
+
+	/**
+	 * Record a next hop that was resolved.
+	 * @param iface the interface the next hop was resolved on
+	 * @param ip IP address of the next hop
+	 * @param latencyNanos time from the first request to the reply
+	 * @param requestsSent number of requests sent
+	 * @param queueDepth number of packets that waited for the next hop
+	 */
+	void resolved(Iface iface, int ip, long latencyNanos, int requestsSent,
+			int queueDepth)
+	{
+		Interface stats = this.get(iface);
+		stats.resolved.increment();
+		stats.latency.record(latencyNanos);
+		stats.finished(requestsSent, queueDepth);
+		this.count(ip, RESOLVED_SHIFT, requestsSent);
+	}
+
+	/**
+	 * Record a next hop that did not resolve.
+	 * @param iface the interface the next hop was resolved on
+	 * @param ip IP address of the next hop
+	 * @param requestsSent number of requests sent
+	 * @param queueDepth number of packets that waited for the next hop
+	 */
+	void timedOut(Iface iface, int ip, int requestsSent, int queueDepth)
+	{
+		Interface stats = this.get(iface);
+		stats.timedOut.increment();
+		stats.finished(requestsSent, queueDepth);
+		this.count(ip, TIMED_OUT_SHIFT, requestsSent);
+	}
+
+	/**
+	 * Add an outcome and the requests it took to a next hop's counters.
+	 */
+	private void count(int ip, int shift, int requestsSent)
+	{
+		while (true)
+		{
+			long value = this.neighbors.get(ip);
+			long next = (ArpTable.NONE == value) ? 0 : value;
+			next = add(next, shift, 1);
+			next = add(next, REQUESTS_SHIFT, requestsSent);
+			if (ArpTable.NONE == value)
+			{
+				if (this.numNeighbors.get() >= MAX_NEIGHBORS)
+				{ return; }
+				if (this.neighbors.putIfAbsent(ip, next))
+				{
+					this.numNeighbors.incrementAndGet();
+					return;
+				}
+			}
+			else if (this.neighbors.replace(ip, value, next))
+			{ return; }
+		}
+	}
+
+	/**
+	 * @return a packed value with one of its counters increased
+	 */
+	private static long add(long value, int shift, int amount)
+	{
+		long counter = Math.min(COUNTER_MASK,
+				((value >>> shift) & COUNTER_MASK) + amount);
+		return (value & ~(COUNTER_MASK << shift)) | (counter << shift);
+	}
+
+	/**
+	 * @return a counter unpacked from a next hop's value
+	 */
+	private long neighborCounter(int ip, int shift)
+	{
+		long value = this.neighbors.get(ip);
+		return (ArpTable.NONE == value) ? 0 : (value >>> shift) & COUNTER_MASK;
+	}
+
+	/**
+	 * @param ip IP address of a next hop
+	 * @return number of times the next hop was resolved
+	 */
+	public long getNeighborResolved(int ip)
+	{ return this.neighborCounter(ip, RESOLVED_SHIFT); }
+
+	/**
+	 * @param ip IP address of a next hop
+	 * @return number of times the next hop did not resolve
+	 */
+	public long getNeighborTimedOut(int ip)
+	{ return this.neighborCounter(ip, TIMED_OUT_SHIFT); }
+
+	/**
+	 * @param ip IP address of a next hop
+	 * @return number of requests sent to resolve the next hop
+	 */
+	public long getNeighborRequests(int ip)
+	{ return this.neighborCounter(ip, REQUESTS_SHIFT); }
+
+	public String toString()
+	{
+		StringBuilder result = new StringBuilder("ARP resolution:\n");
+		for (Map.Entry<Iface,Interface> entry : this.interfaces.entrySet())
+		{
+			Interface stats = entry.getValue();
+			result.append(String.format(
+					"  %s: %d resolved, %d timed out, peak queue %d, "
+					+ "requests per resolution", entry.getKey().getName(),
+					stats.getResolved(), stats.getTimedOut(),
+					stats.getPeakQueueDepth()));
+			for (int i = 0; i < stats.requests.length(); i++)
+			{ result.append(String.format(" %d:%d", i, stats.requests.get(i))); }
+			result.append("\n    latency ").append(stats.latency);
+			result.append("\n    wait    ").append(stats.wait).append("\n");
+		}
+
+		// Next hops that failed most often
+		final List<long[]> worst = new ArrayList<long[]>();
+		this.neighbors.forEach(new ArpTable.Visitor()
+		{
+			public void visit(int ip, long value)
+			{
+				long timedOut = (value >>> TIMED_OUT_SHIFT) & COUNTER_MASK;
+				if (timedOut > 0)
+				{ worst.add(new long[] { ip, timedOut, value }); }
+			}
+		});
+		Collections.sort(worst, new Comparator<long[]>()
+		{
+			public int compare(long[] a, long[] b)
+			{ return Long.compare(b[1], a[1]); }
+		});
+		for (int i = 0; i < Math.min(WORST_NEIGHBORS, worst.size()); i++)
+		{
+			long[] neighbor = worst.get(i);
+			result.append(String.format(
+					"  %s: %d timed out, %d resolved, %d requests\n",
+					IPv4.fromIPv4Address((int)neighbor[0]), neighbor[1],
+					(neighbor[2] >>> RESOLVED_SHIFT) & COUNTER_MASK,
+					(neighbor[2] >>> REQUESTS_SHIFT) & COUNTER_MASK));
+		}
+		return result.toString();
+	}
+}
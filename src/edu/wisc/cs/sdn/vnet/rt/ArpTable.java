@@ -0,0 +1,364 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * Open-addressed hash table from IP addresses to long values, stored as
+ * primitive ints and longs so lookups neither box keys nor allocate. The
+ * ARP cache keeps MAC addresses and flags in it; other users keep times or
+ * packed counters.
+ * <p>
+ * The table is split into stripes, each with its own arrays and lock.
+ * Writers lock one stripe. Readers take no lock: each stripe has a sequence
+ * number that is odd while a write is in progress, and a read that sees the
+ * number change retries.
+ * <p>
+ * Values are arbitrary longs other than {@link #NONE} (-1), which the
+ * table reserves; what they mean is up to the caller. IP address 0 cannot
+ * be stored.
+ */
+class ArpTable
+{
+	/** Value returned for IP addresses that are not in the table; cannot
+	 *  be stored */
+	static final long NONE = -1;
+
+	/** Number of hash bits that select a stripe, and number of stripes */
+	private static final int STRIPE_BITS = 6;
+	private static final int NUM_STRIPES = 1 << STRIPE_BITS;
+
+	/** Initial number of slots in each stripe; a power of two */
+	private static final int INITIAL_CAPACITY = 16;
+
+	/** Key of a slot that has never been used */
+	private static final int EMPTY = 0;
+
+	/** Value of a slot whose entry was removed; the key is kept so probes
+	 *  for other keys continue past the slot */
+	private static final long TOMBSTONE = -1;
+
+	/**
+	 * Receives the entries of the table.
+	 */
+	interface Visitor
+	{
+		/**
+		 * @param ip IP address
+		 * @param value value stored for the IP address
+		 */
+		void visit(int ip, long value);
+	}
+
+	/** Arrays of a stripe, replaced together when the stripe grows */
+	private static final class Slots
+	{
+		private final int[] keys;
+		private final long[] values;
+
+		private Slots(int capacity)
+		{
+			this.keys = new int[capacity];
+			this.values = new long[capacity];
+		}
+	}
+
+	/** A part of the table with its own arrays and lock */
+	private static final class Stripe
+	{
+		/** Odd while a write is in progress */
+		private volatile int sequence;
+
+		private volatile Slots slots;
+
+		/** Number of slots holding entries and tombstones; guarded by this */
+		private int live;
+		private int dead;
+
+		private Stripe()
+		{ this.slots = new Slots(INITIAL_CAPACITY); }
+	}
+
+	private final Stripe[] stripes;
+
+	/**
+	 * Create an empty table.
+	 */
+	ArpTable()
+	{
+		this.stripes = new Stripe[NUM_STRIPES];
+		for (int i = 0; i < NUM_STRIPES; i++)
+		{ this.stripes[i] = new Stripe(); }
+	}
+
+	/**
+	 * @return hash of an IP address; the high bits select a stripe and the
+	 *         low bits a slot
+	 */
+	private static int hash(int ip)
+	{
+		int h = ip * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return index of the slot holding a key, or of the empty slot where a
+	 *         probe for the key ends
+	 */
+	private static int find(Slots slots, int ip, int hash)
+	{
+		int mask = slots.keys.length - 1;
+		int i = hash & mask;
+		while (slots.keys[i] != ip && slots.keys[i] != EMPTY)
+		{ i = (i + 1) & mask; }
+		return i;
+	}
+
+	/**
+	 * Get the value stored for an IP address.
+	 * @param ip IP address
+	 * @return the value, {@link #NONE} if the table has none
+	 */
+	long get(int ip)
+	{
+		int hash = hash(ip);
+		Stripe stripe = this.stripes[hash >>> (32 - STRIPE_BITS)];
+		while (true)
+		{
+			int sequence = stripe.sequence;
+			if (0 == (sequence & 1))
+			{
+				Slots slots = stripe.slots;
+				int mask = slots.keys.length - 1;
+				int i = hash & mask;
+				long value = NONE;
+				// Bound the probe; a torn read may not find an empty slot
+				for (int n = 0; n <= mask; n++)
+				{
+					int key = slots.keys[i];
+					if (key == ip)
+					{
+						value = slots.values[i];
+						break;
+					}
+					if (EMPTY == key)
+					{ break; }
+					i = (i + 1) & mask;
+				}
+				VarHandle.loadLoadFence();
+				if (stripe.sequence == sequence)
+				{ return value; }
+			}
+			Thread.onSpinWait();
+		}
+	}
+
+	/**
+	 * Store a value for an IP address, replacing any existing value.
+	 * @param ip IP address; must not be 0
+	 * @param value the value; must not be -1
+	 */
+	void put(int ip, long value)
+	{
+		int hash = hash(ip);
+		Stripe stripe = this.stripes[hash >>> (32 - STRIPE_BITS)];
+		synchronized(stripe)
+		{
+			if (4 * (stripe.live + stripe.dead + 1)
+					> 3 * stripe.slots.keys.length)
+			{ rehash(stripe); }
+			beginWrite(stripe);
+			Slots slots = stripe.slots;
+			int i = find(slots, ip, hash);
+			if (EMPTY == slots.keys[i])
+			{
+				stripe.live++;
+				slots.values[i] = value;
+				slots.keys[i] = ip;
+			}
+			else
+			{
+				if (TOMBSTONE == slots.values[i])
+				{
+					stripe.dead--;
+					stripe.live++;
+				}
+				slots.values[i] = value;
+			}
+			endWrite(stripe);
+		}
+	}
+
+	/**
+	 * Store a value for an IP address, unless the address has one.
+	 * @param ip IP address; must not be 0
+	 * @param value the value; must not be -1
+	 * @return true if the value was stored
+	 */
+	boolean putIfAbsent(int ip, long value)
+	{
+		int hash = hash(ip);
+		Stripe stripe = this.stripes[hash >>> (32 - STRIPE_BITS)];
+		synchronized(stripe)
+		{
+			Slots slots = stripe.slots;
+			int i = find(slots, ip, hash);
+			if (slots.keys[i] != EMPTY && slots.values[i] != TOMBSTONE)
+			{ return false; }
+			this.put(ip, value);
+			return true;
+		}
+	}
+
+	/**
+	 * Remove the value for an IP address.
+	 * @param ip IP address
+	 * @return true if the table had a value for the address
+	 */
+	boolean remove(int ip)
+	{
+		int hash = hash(ip);
+		Stripe stripe = this.stripes[hash >>> (32 - STRIPE_BITS)];
+		synchronized(stripe)
+		{
+			Slots slots = stripe.slots;
+			int i = find(slots, ip, hash);
+			if (EMPTY == slots.keys[i] || TOMBSTONE == slots.values[i])
+			{ return false; }
+			beginWrite(stripe);
+			slots.values[i] = TOMBSTONE;
+			stripe.live--;
+			stripe.dead++;
+			endWrite(stripe);
+			return true;
+		}
+	}
+
+	/**
+	 * Replace the value for an IP address, if it is still a given value.
+	 * @param ip IP address
+	 * @param expected the value the address must have
+	 * @param value the new value; must not be -1
+	 * @return true if the value was replaced
+	 */
+	boolean replace(int ip, long expected, long value)
+	{
+		int hash = hash(ip);
+		Stripe stripe = this.stripes[hash >>> (32 - STRIPE_BITS)];
+		synchronized(stripe)
+		{
+			Slots slots = stripe.slots;
+			int i = find(slots, ip, hash);
+			if (EMPTY == slots.keys[i] || slots.values[i] != expected)
+			{ return false; }
+			beginWrite(stripe);
+			slots.values[i] = value;
+			endWrite(stripe);
+			return true;
+		}
+	}
+
+	/**
+	 * Remove the value for an IP address, if it is still a given value.
+	 * @param ip IP address
+	 * @param expected the value the address must have
+	 * @return true if the value was removed
+	 */
+	boolean remove(int ip, long expected)
+	{
+		int hash = hash(ip);
+		Stripe stripe = this.stripes[hash >>> (32 - STRIPE_BITS)];
+		synchronized(stripe)
+		{
+			Slots slots = stripe.slots;
+			int i = find(slots, ip, hash);
+			if (EMPTY == slots.keys[i] || slots.values[i] != expected
+					|| TOMBSTONE == expected)
+			{ return false; }
+			beginWrite(stripe);
+			slots.values[i] = TOMBSTONE;
+			stripe.live--;
+			stripe.dead++;
+			endWrite(stripe);
+			return true;
+		}
+	}
+
+	/**
+	 * @return number of IP addresses in the table
+	 */
+	int size()
+	{
+		int size = 0;
+		for (Stripe stripe : this.stripes)
+		{
+			synchronized(stripe)
+			{ size += stripe.live; }
+		}
+		return size;
+	}
+
+	/**
+	 * Pass every entry of the table to a visitor. Entries of one stripe are
+	 * visited while holding the stripe's lock, so the visitor must not
+	 * modify the table.
+	 * @param visitor receives the entries
+	 */
+	void forEach(Visitor visitor)
+	{
+		for (Stripe stripe : this.stripes)
+		{
+			synchronized(stripe)
+			{
+				Slots slots = stripe.slots;
+				for (int i = 0; i < slots.keys.length; i++)
+				{
+					if (slots.keys[i] != EMPTY
+							&& slots.values[i] != TOMBSTONE)
+					{ visitor.visit(slots.keys[i], slots.values[i]); }
+				}
+			}
+		}
+	}
+
+	/**
+	 * Mark the start of a write to a stripe; the caller holds its lock.
+	 */
+	private static void beginWrite(Stripe stripe)
+	{
+		stripe.sequence = stripe.sequence + 1;
+		VarHandle.storeStoreFence();
+	}
+
+	/**
+	 * Mark the end of a write to a stripe; the caller holds its lock.
+	 */
+	private static void endWrite(Stripe stripe)
+	{ stripe.sequence = stripe.sequence + 1; }
+
+	/**
+	 * Copy the entries of a stripe into new arrays without tombstones,
+	 * growing them if the stripe is more than half full of entries; the
+	 * caller holds the stripe's lock.
+	 */
+	private static void rehash(Stripe stripe)
+	{
+		Slots old = stripe.slots;
+		int capacity = old.keys.length;
+		if (2 * (stripe.live + 1) > capacity)
+		{ capacity *= 2; }
+		Slots slots = new Slots(capacity);
+		for (int i = 0; i < old.keys.length; i++)
+		{
+			if (old.keys[i] != EMPTY && old.values[i] != TOMBSTONE)
+			{
+				int j = find(slots, old.keys[i], hash(old.keys[i]));
+				slots.keys[j] = old.keys[i];
+				slots.values[j] = old.values[i];
+			}
+		}
+
+		// The new arrays are complete before readers can see them
+		stripe.slots = slots;
+		stripe.dead = 0;
+	}
+}
@@ -0,0 +1,479 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * DIR-24-8 forwarding table compiled from route entries. The first 24 bits
+ * of an address index a primary table of 2^24 slots; prefixes longer than
+ * /24 are stored in overflow blocks of 256 slots indexed by the last 8 bits.
+ * A lookup therefore takes at most two table accesses.
+ * <p>
+ * Slots hold the index (plus one) of a route in the route array, zero if no
+ * route matches, or, in the primary table only, the negated index (plus one)
+ * of an overflow block.
+ * <p>
+ * All arrays are split into pages that are copied on write. Changes made
+ * between two calls to {@link #publish()} copy each page they touch once,
+ * so tables returned by earlier calls are never modified and can be read
+ * without locking. This object itself must only be used by one writer at a
+ * time.
+ */
+class Dir248Fib
+{
+	/** Number of bits of a primary table index that select a slot in a page */
+	private static final int PAGE_BITS = 16;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int NUM_PAGES = 1 << (24 - PAGE_BITS);
+
+	/** Number of slots in an overflow block */
+	private static final int BLOCK_SIZE = 256;
+
+	/** Number of bits of a route index that select a slot in a route page */
+	private static final int ROUTE_PAGE_BITS = 10;
+	private static final int ROUTE_PAGE_SIZE = 1 << ROUTE_PAGE_BITS;
+
+	/** Number of lookups a batch lookup works on together */
+	private static final int BATCH_WIDTH = 16;
+
+	/**
+	 * Read-only view of the forwarding table.
+	 */
+	static final class Table
+	{
+		/** Slots read so far by each thread's batch lookups */
+		private static final ThreadLocal<int[]> batchSlots =
+			new ThreadLocal<int[]>()
+			{
+				protected int[] initialValue()
+				{ return new int[BATCH_WIDTH]; }
+			};
+
+		private final int[][] tbl24;
+		private final int[][] blocks;
+		private final RouteEntry[][] routes;
+
+		private Table(int[][] tbl24, int[][] blocks, RouteEntry[][] routes)
+		{
+			this.tbl24 = tbl24;
+			this.blocks = blocks;
+			this.routes = routes;
+		}
+
+		/**
+		 * Find the route with the longest prefix matching an IP address.
+		 * @param ip IP address
+		 * @return the matching route entry, null if none exists
+		 */
+		RouteEntry lookup(int ip)
+		{
+			int slot = this.tbl24[ip >>> 24][(ip >>> 8) & (PAGE_SIZE - 1)];
+			if (slot < 0)
+			{ slot = this.blocks[-slot - 1][ip & 0xFF]; }
+			if (0 == slot)
+			{ return null; }
+			slot--;
+			return this.routes[slot >>> ROUTE_PAGE_BITS]
+					[slot & (ROUTE_PAGE_SIZE - 1)];
+		}
+
+		/**
+		 * Find the routes with the longest prefix matching several IP
+		 * addresses. Each step of the lookups is done for a group of
+		 * addresses before the next step, so the memory accesses of the
+		 * lookups in a group overlap instead of waiting on each other.
+		 * @param ips IP addresses
+		 * @param count number of IP addresses to look up
+		 * @param out receives the matching route entry, or null, for each
+		 *        address
+		 */
+		void lookupBatch(int[] ips, int count, RouteEntry[] out)
+		{
+			int[] slots = batchSlots.get();
+			for (int base = 0; base < count; base += BATCH_WIDTH)
+			{
+				int width = Math.min(BATCH_WIDTH, count - base);
+				for (int j = 0; j < width; j++)
+				{
+					int ip = ips[base + j];
+					slots[j] = this.tbl24[ip >>> 24]
+							[(ip >>> 8) & (PAGE_SIZE - 1)];
+				}
+				for (int j = 0; j < width; j++)
+				{
+					if (slots[j] < 0)
+					{ slots[j] = this.blocks[-slots[j] - 1][ips[base + j] & 0xFF]; }
+				}
+				for (int j = 0; j < width; j++)
+				{
+					int slot = slots[j] - 1;
+					out[base + j] = (slot < 0) ? null 
+							: this.routes[slot >>> ROUTE_PAGE_BITS]
+								[slot & (ROUTE_PAGE_SIZE - 1)];
+				}
+			}
+		}
+	}
+
+	/** Primary table indexed by the first 24 bits of an address */
+	private int[][] tbl24;
+
+	/** Overflow blocks for prefixes longer than /24 */
+	private int[][] blocks;
+
+	/** Number of overflow block indices handed out so far */
+	private int numBlocks;
+
+	/** Overflow blocks that have been released and can be reused */
+	private int[] freeBlocks;
+	private int numFreeBlocks;
+
+	/** Routes referenced by the tables */
+	private RouteEntry[][] routes;
+
+	/** Prefix length of each route in the route array; never published */
+	private byte[] lengths;
+
+	/** Indices in the route array that have been released */
+	private int[] freeRoutes;
+	private int numFreeRoutes;
+
+	/** Number of route indices handed out so far */
+	private int numRoutes;
+
+	/** Maps each route to its index in the route array */
+	private Map<RouteEntry,Integer> indices;
+
+	/** Number of times the table has been published */
+	private int epoch;
+
+	/** Epoch in which each page was last copied; a page whose epoch is
+	 *  current is private to the writer and can be modified in place */
+	private int[] tbl24Epochs;
+	private int[] blockEpochs;
+	private int[] routeEpochs;
+
+	/** True if the top-level arrays are referenced by a published table */
+	private boolean shared;
+
+	/**
+	 * Create an empty DIR-24-8 table.
+	 */
+	Dir248Fib()
+	{
+		// All primary pages start out as the same empty page
+		int[] empty = new int[PAGE_SIZE];
+		this.tbl24 = new int[NUM_PAGES][];
+		Arrays.fill(this.tbl24, empty);
+		this.tbl24Epochs = new int[NUM_PAGES];
+		Arrays.fill(this.tbl24Epochs, -1);
+
+		this.blocks = new int[16][];
+		this.blockEpochs = new int[16];
+		this.numBlocks = 0;
+		this.freeBlocks = new int[16];
+		this.numFreeBlocks = 0;
+
+		this.routes = new RouteEntry[1][];
+		this.routes[0] = new RouteEntry[ROUTE_PAGE_SIZE];
+		this.routeEpochs = new int[1];
+		this.lengths = new byte[ROUTE_PAGE_SIZE];
+		this.freeRoutes = new int[16];
+		this.numFreeRoutes = 0;
+		this.numRoutes = 0;
+		this.indices = new IdentityHashMap<RouteEntry,Integer>();
+
+		this.epoch = 0;
+		this.shared = false;
+	}
+
+	/**
+	 * Make a read-only view of the table as it is now. Subsequent changes do
+	 * not affect the view.
+	 * @return the view
+	 */
+	Table publish()
+	{
+		this.shared = true;
+		return new Table(this.tbl24, this.blocks, this.routes);
+	}
+
+	/**
+	 * Add a route for a prefix that has no route yet.
+	 * @param entry the route
+	 * @param prefix destination prefix
+	 * @param length prefix length
+	 */
+	void insert(RouteEntry entry, int prefix, int length)
+	{
+		this.beginWrite();
+		prefix &= RouteTrie.maskOf(length);
+		int value = this.allocateRoute(entry, length) + 1;
+		if (length <= 24)
+		{
+			int start = prefix >>> 8;
+			int end = start + (1 << (24 - length));
+			for (int i = start; i < end; i++)
+			{
+				int slot = this.get24(i);
+				if (slot < 0)
+				{ this.fill(-slot - 1, 0, BLOCK_SIZE, length, value); }
+				else if (this.covers(slot, length))
+				{ this.set24(i, value); }
+			}
+		}
+		else
+		{
+			int i = prefix >>> 8;
+			int slot = this.get24(i);
+			if (slot >= 0)
+			{
+				// Expand the primary slot into an overflow block
+				int block = this.allocateBlock();
+				Arrays.fill(this.blocks[block], slot);
+				slot = -(block + 1);
+				this.set24(i, slot);
+			}
+			int start = prefix & 0xFF;
+			this.fill(-slot - 1, start, start + (1 << (32 - length)), length,
+					value);
+		}
+	}
+
+	/**
+	 * Replace the route for a prefix with a new route for the same prefix.
+	 * @param oldEntry the existing route
+	 * @param newEntry the route that takes its place
+	 */
+	void replace(RouteEntry oldEntry, RouteEntry newEntry)
+	{
+		Integer index = this.indices.remove(oldEntry);
+		if (null == index)
+		{ return; }
+		this.beginWrite();
+		this.writableRoutes(index >>> ROUTE_PAGE_BITS)
+				[index & (ROUTE_PAGE_SIZE - 1)] = newEntry;
+		this.indices.put(newEntry, index);
+	}
+
+	/**
+	 * Remove the route for a prefix.
+	 * @param entry the route to remove
+	 * @param prefix destination prefix
+	 * @param length prefix length
+	 * @param parent the route with the longest prefix covering the removed
+	 *        prefix, which takes over its slots; null if there is none
+	 */
+	void remove(RouteEntry entry, int prefix, int length, RouteEntry parent)
+	{
+		Integer index = this.indices.get(entry);
+		if (null == index)
+		{ return; }
+		this.beginWrite();
+		prefix &= RouteTrie.maskOf(length);
+		int value = index + 1;
+		int parentValue = 0;
+		if (parent != null)
+		{ parentValue = this.indices.get(parent) + 1; }
+
+		if (length <= 24)
+		{
+			int start = prefix >>> 8;
+			int end = start + (1 << (24 - length));
+			for (int i = start; i < end; i++)
+			{
+				int slot = this.get24(i);
+				if (slot < 0)
+				{
+					this.substitute(-slot - 1, 0, BLOCK_SIZE, value,
+							parentValue);
+					this.collapse(i);
+				}
+				else if (slot == value)
+				{ this.set24(i, parentValue); }
+			}
+		}
+		else
+		{
+			int i = prefix >>> 8;
+			int start = prefix & 0xFF;
+			this.substitute(-this.get24(i) - 1, start,
+					start + (1 << (32 - length)), value, parentValue);
+			this.collapse(i);
+		}
+
+		this.releaseRoute(entry, index);
+	}
+
+	/**
+	 * Stop sharing the top-level arrays with the last published table.
+	 */
+	private void beginWrite()
+	{
+		if (!this.shared)
+		{ return; }
+		this.tbl24 = this.tbl24.clone();
+		this.blocks = this.blocks.clone();
+		this.routes = this.routes.clone();
+		this.epoch++;
+		this.shared = false;
+	}
+
+	private int get24(int i)
+	{ return this.tbl24[i >>> PAGE_BITS][i & (PAGE_SIZE - 1)]; }
+
+	private void set24(int i, int value)
+	{
+		int page = i >>> PAGE_BITS;
+		if (this.tbl24Epochs[page] != this.epoch)
+		{
+			this.tbl24[page] = this.tbl24[page].clone();
+			this.tbl24Epochs[page] = this.epoch;
+		}
+		this.tbl24[page][i & (PAGE_SIZE - 1)] = value;
+	}
+
+	private int[] writableBlock(int block)
+	{
+		if (this.blockEpochs[block] != this.epoch)
+		{
+			this.blocks[block] = this.blocks[block].clone();
+			this.blockEpochs[block] = this.epoch;
+		}
+		return this.blocks[block];
+	}
+
+	private RouteEntry[] writableRoutes(int page)
+	{
+		if (this.routeEpochs[page] != this.epoch)
+		{
+			this.routes[page] = this.routes[page].clone();
+			this.routeEpochs[page] = this.epoch;
+		}
+		return this.routes[page];
+	}
+
+	/**
+	 * @return true if a route of the given prefix length should take over a
+	 *         slot with the given value
+	 */
+	private boolean covers(int slot, int length)
+	{ return (0 == slot) || (this.lengths[slot - 1] <= length); }
+
+	/**
+	 * Store a route in all slots of a range of an overflow block that are not
+	 * already covered by a longer prefix.
+	 */
+	private void fill(int block, int start, int end, int length, int value)
+	{
+		int[] slots = this.blocks[block];
+		for (int j = start; j < end; j++)
+		{
+			if (this.covers(slots[j], length))
+			{
+				slots = this.writableBlock(block);
+				slots[j] = value;
+			}
+		}
+	}
+
+	/**
+	 * Replace one value with another in a range of an overflow block.
+	 */
+	private void substitute(int block, int start, int end, int value,
+			int newValue)
+	{
+		int[] slots = this.blocks[block];
+		for (int j = start; j < end; j++)
+		{
+			if (slots[j] == value)
+			{
+				slots = this.writableBlock(block);
+				slots[j] = newValue;
+			}
+		}
+	}
+
+	/**
+	 * Fold an overflow block back into its primary slot if all of the
+	 * block's slots hold the same value.
+	 * @param i index of a primary slot that refers to an overflow block
+	 */
+	private void collapse(int i)
+	{
+		int block = -this.get24(i) - 1;
+		int[] slots = this.blocks[block];
+		for (int j = 1; j < BLOCK_SIZE; j++)
+		{
+			if (slots[j] != slots[0])
+			{ return; }
+		}
+		this.set24(i, slots[0]);
+		this.blocks[block] = null;
+		if (this.numFreeBlocks == this.freeBlocks.length)
+		{ this.freeBlocks = Arrays.copyOf(this.freeBlocks,
+				2 * this.freeBlocks.length); }
+		this.freeBlocks[this.numFreeBlocks++] = block;
+	}
+
+	private int allocateBlock()
+	{
+		int block;
+		if (this.numFreeBlocks > 0)
+		{ block = this.freeBlocks[--this.numFreeBlocks]; }
+		else
+		{
+			if (this.numBlocks == this.blocks.length)
+			{
+				this.blocks = Arrays.copyOf(this.blocks, 2 * this.numBlocks);
+				this.blockEpochs = Arrays.copyOf(this.blockEpochs,
+						2 * this.numBlocks);
+			}
+			block = this.numBlocks++;
+		}
+		this.blocks[block] = new int[BLOCK_SIZE];
+		this.blockEpochs[block] = this.epoch;
+		return block;
+	}
+
+	private int allocateRoute(RouteEntry entry, int length)
+	{
+		int index;
+		if (this.numFreeRoutes > 0)
+		{ index = this.freeRoutes[--this.numFreeRoutes]; }
+		else
+		{
+			index = this.numRoutes++;
+			int page = index >>> ROUTE_PAGE_BITS;
+			if (page == this.routes.length)
+			{
+				this.routes = Arrays.copyOf(this.routes, 2 * page);
+				this.routeEpochs = Arrays.copyOf(this.routeEpochs, 2 * page);
+				this.lengths = Arrays.copyOf(this.lengths,
+						2 * page * ROUTE_PAGE_SIZE);
+			}
+			if (null == this.routes[page])
+			{
+				this.routes[page] = new RouteEntry[ROUTE_PAGE_SIZE];
+				this.routeEpochs[page] = this.epoch;
+			}
+		}
+		this.writableRoutes(index >>> ROUTE_PAGE_BITS)
+				[index & (ROUTE_PAGE_SIZE - 1)] = entry;
+		this.lengths[index] = (byte)length;
+		this.indices.put(entry, index);
+		return index;
+	}
+
+	private void releaseRoute(RouteEntry entry, int index)
+	{
+		this.indices.remove(entry);
+		this.writableRoutes(index >>> ROUTE_PAGE_BITS)
+				[index & (ROUTE_PAGE_SIZE - 1)] = null;
+		if (this.numFreeRoutes == this.freeRoutes.length)
+		{ this.freeRoutes = Arrays.copyOf(this.freeRoutes,
+				2 * this.freeRoutes.length); }
+		this.freeRoutes[this.numFreeRoutes++] = index;
+	}
+}
@@ -0,0 +1,242 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Compact binary file holding the entries of a route table, which can be
+ * memory-mapped at startup instead of parsing a text route table.
+ * <p>
+ * The file starts with a header of four ints: a magic number, the format
+ * version, the number of entries and a CRC32 of everything that follows the
+ * header. The body is the number of interface names, each name as a short
+ * length followed by its bytes, then the total number of next hops. The
+ * destination and mask of every entry follow as two int arrays and the
+ * number of next hops of every entry as a short array. Last come the gateway
+ * of every next hop as an int array and the index of every next hop's
+ * interface in the name table as a short array, with the next hops of each
+ * entry stored consecutively in the order of the entries.
+ */
+class FibFile
+{
+	/** Identifies a binary FIB file */
+	private static final int MAGIC = 0x56464942;
+
+	/** Version of the format; files with any other version are rejected */
+	private static final int VERSION = 2;
+
+	/** Size of the header, in bytes */
+	private static final int HEADER_SIZE = 16;
+
+	/**
+	 * Write route entries to a file.
+	 * @param filename name of the file
+	 * @param entries route entries
+	 * @return true if the file was written, otherwise false
+	 */
+	static boolean write(String filename, Collection<RouteEntry> entries)
+	{
+		// Number the interfaces used by the entries
+		Map<String,Short> ifaceIndices = new HashMap<String,Short>();
+		List<byte[]> ifaceNames = new ArrayList<byte[]>();
+		int namesSize = 4;
+		int hops = 0;
+		for (RouteEntry entry : entries)
+		{
+			for (NextHop hop : entry.getNextHops())
+			{
+				String name = hop.getInterface().getName();
+				if (!ifaceIndices.containsKey(name))
+				{
+					ifaceIndices.put(name, (short)ifaceNames.size());
+					ifaceNames.add(name.getBytes());
+					namesSize += 2 + name.getBytes().length;
+				}
+				hops++;
+			}
+		}
+
+		int count = entries.size();
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + namesSize + 4
+				+ 10 * count + 6 * hops);
+		buf.position(HEADER_SIZE);
+		buf.putInt(ifaceNames.size());
+		for (byte[] name : ifaceNames)
+		{
+			buf.putShort((short)name.length);
+			buf.put(name);
+		}
+		buf.putInt(hops);
+		for (RouteEntry entry : entries)
+		{ buf.putInt(entry.getDestinationAddress()); }
+		for (RouteEntry entry : entries)
+		{ buf.putInt(entry.getMaskAddress()); }
+		for (RouteEntry entry : entries)
+		{ buf.putShort((short)entry.getNextHops().length); }
+		for (RouteEntry entry : entries)
+		{
+			for (NextHop hop : entry.getNextHops())
+			{ buf.putInt(hop.getGatewayAddress()); }
+		}
+		for (RouteEntry entry : entries)
+		{
+			for (NextHop hop : entry.getNextHops())
+			{ buf.putShort(ifaceIndices.get(hop.getInterface().getName())); }
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), HEADER_SIZE, buf.capacity() - HEADER_SIZE);
+		buf.position(0);
+		buf.putInt(MAGIC);
+		buf.putInt(VERSION);
+		buf.putInt(count);
+		buf.putInt((int)crc.getValue());
+		buf.position(0);
+
+		try
+		{
+			RandomAccessFile file = new RandomAccessFile(filename, "rw");
+			try
+			{
+				file.setLength(0);
+				FileChannel channel = file.getChannel();
+				while (buf.hasRemaining())
+				{ channel.write(buf); }
+			}
+			finally
+			{ file.close(); }
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read route entries from a file.
+	 * @param filename name of the file
+	 * @param router the router whose interfaces the entries refer to
+	 * @return the route entries, null if the file could not be read, is not
+	 *         a binary FIB file of the current version, is corrupt, or refers
+	 *         to interfaces the router does not have
+	 */
+	static List<RouteEntry> read(String filename, Router router)
+	{
+		MappedByteBuffer buf;
+		try
+		{
+			RandomAccessFile file = new RandomAccessFile(filename, "r");
+			try
+			{
+				FileChannel channel = file.getChannel();
+				buf = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+						channel.size());
+			}
+			finally
+			{ file.close(); }
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return null;
+		}
+
+		if (buf.limit() < HEADER_SIZE || buf.getInt() != MAGIC)
+		{
+			System.err.println(filename + " is not a binary FIB file");
+			return null;
+		}
+		int version = buf.getInt();
+		if (version != VERSION)
+		{
+			System.err.println(String.format(
+					"Binary FIB file %s has version %d, expected %d",
+					filename, version, VERSION));
+			return null;
+		}
+		int count = buf.getInt();
+		int checksum = buf.getInt();
+		CRC32 crc = new CRC32();
+		crc.update(buf.duplicate());
+		if ((int)crc.getValue() != checksum)
+		{
+			System.err.println("Checksum mismatch in binary FIB file "
+					+ filename);
+			return null;
+		}
+
+		try
+		{
+			// Resolve interface names
+			int numIfaces = buf.getInt();
+			Iface[] ifaces = new Iface[numIfaces];
+			for (int i = 0; i < numIfaces; i++)
+			{
+				byte[] name = new byte[buf.getShort()];
+				buf.get(name);
+				ifaces[i] = router.getInterface(new String(name));
+				if (null == ifaces[i])
+				{
+					System.err.println("Binary FIB file " + filename
+							+ " refers to unknown interface "
+							+ new String(name));
+					return null;
+				}
+			}
+
+			// Read the entry arrays in bulk
+			int hops = buf.getInt();
+			int[] dsts = new int[count];
+			int[] masks = new int[count];
+			short[] hopCounts = new short[count];
+			int[] gws = new int[hops];
+			short[] ifaceIndices = new short[hops];
+			IntBuffer ints = buf.slice().asIntBuffer();
+			ints.get(dsts);
+			ints.get(masks);
+			buf.position(buf.position() + 8 * count);
+			buf.slice().asShortBuffer().get(hopCounts);
+			buf.position(buf.position() + 2 * count);
+			buf.slice().asIntBuffer().get(gws);
+			buf.position(buf.position() + 4 * hops);
+			ShortBuffer shorts = buf.slice().asShortBuffer();
+			shorts.get(ifaceIndices);
+
+			List<RouteEntry> entries = new ArrayList<RouteEntry>(count);
+			int hop = 0;
+			for (int i = 0; i < count; i++)
+			{
+				if (hopCounts[i] < 1)
+				{ throw new IllegalStateException(); }
+				NextHop[] nextHops = new NextHop[hopCounts[i]];
+				for (int j = 0; j < nextHops.length; j++, hop++)
+				{
+					nextHops[j] = new NextHop(gws[hop], 
+							ifaces[ifaceIndices[hop]]);
+				}
+				entries.add(new RouteEntry(dsts[i], masks[i], nextHops));
+			}
+			return entries;
+		}
+		catch (RuntimeException e)
+		{
+			System.err.println("Malformed binary FIB file " + filename);
+			return null;
+		}
+	}
+}
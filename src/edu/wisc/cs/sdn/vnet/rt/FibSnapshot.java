@@ -0,0 +1,66 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+/**
+ * Immutable set of lookup structures for a route table, as of one change to
+ * the table. Lookups read a snapshot without locking.
+ */
+final class FibSnapshot
+{
+	/** Trie over all entries in the route table */
+	private final RouteTrie trie;
+
+	/** DIR-24-8 table compiled from the same entries; null if the DIR-24-8
+	 *  engine is not selected */
+	private final Dir248Fib.Table dir248;
+
+	/** Number of snapshots published for the route table up to this one */
+	private final int generation;
+
+	FibSnapshot(RouteTrie trie, Dir248Fib.Table dir248, int generation)
+	{
+		this.trie = trie;
+		this.dir248 = dir248;
+		this.generation = generation;
+	}
+
+	/**
+	 * @return number of snapshots published for the route table up to and
+	 *         including this one; never zero
+	 */
+	int getGeneration()
+	{ return this.generation; }
+
+	/**
+	 * @return trie over all entries in the route table
+	 */
+	RouteTrie getTrie()
+	{ return this.trie; }
+
+	/**
+	 * Find the route entry with the longest prefix matching an IP address.
+	 * @param ip IP address
+	 * @return the matching route entry, null if none exists
+	 */
+	RouteEntry lookup(int ip)
+	{
+		if (this.dir248 != null)
+		{ return this.dir248.lookup(ip); }
+		return this.trie.lookup(ip);
+	}
+
+	/**
+	 * Find the route entries with the longest prefix matching several IP
+	 * addresses.
+	 * @param ips IP addresses
+	 * @param count number of IP addresses to look up
+	 * @param out receives the matching route entry, or null, for each
+	 *        address
+	 */
+	void lookupBatch(int[] ips, int count, RouteEntry[] out)
+	{
+		if (this.dir248 != null)
+		{ this.dir248.lookupBatch(ips, count, out); }
+		else
+		{ this.trie.lookupBatch(ips, count, out); }
+	}
+}
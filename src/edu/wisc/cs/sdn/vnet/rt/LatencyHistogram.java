@@ -0,0 +1,114 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations with buckets of powers of two microseconds. Bucket
+ * 0 counts durations under a microsecond and bucket i durations from
+ * 2^(i-1) up to 2^i microseconds, so percentiles are known to within a
+ * factor of two. Recording is lock-free and does not allocate.
+ */
+public class LatencyHistogram
+{
+	/** Number of buckets; the last one also counts longer durations */
+	private static final int NUM_BUCKETS = 40;
+
+	private AtomicLongArray buckets;
+
+	/** Sum of the durations (in nanoseconds), and the longest one */
+	private LongAdder sum;
+	private AtomicLong max;
+
+	/**
+	 * Create an empty histogram.
+	 */
+	public LatencyHistogram()
+	{
+		this.buckets = new AtomicLongArray(NUM_BUCKETS);
+		this.sum = new LongAdder();
+		this.max = new AtomicLong();
+	}
+
+	/**
+	 * Count a duration.
+	 * @param nanos the duration, in nanoseconds
+	 */
+	void record(long nanos)
+	{
+		if (nanos < 0)
+		{ nanos = 0; }
+		long micros = nanos / 1000;
+		int bucket = Math.min(NUM_BUCKETS - 1,
+				64 - Long.numberOfLeadingZeros(micros));
+		this.buckets.incrementAndGet(bucket);
+		this.sum.add(nanos);
+		long max = this.max.get();
+		while (nanos > max && !this.max.compareAndSet(max, nanos))
+		{ max = this.max.get(); }
+	}
+
+	/**
+	 * @return number of durations counted
+	 */
+	public long getCount()
+	{
+		long count = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++)
+		{ count += this.buckets.get(i); }
+		return count;
+	}
+
+	/**
+	 * @return mean duration, in microseconds; 0 if none were counted
+	 */
+	public long getMeanMicros()
+	{
+		long count = this.getCount();
+		return (0 == count) ? 0 : this.sum.sum() / count / 1000;
+	}
+
+	/**
+	 * @return longest duration, in microseconds
+	 */
+	public long getMaxMicros()
+	{ return this.max.get() / 1000; }
+
+	/**
+	 * Estimate a percentile of the durations.
+	 * @param percent the percentile, from 0 to 100
+	 * @return upper bound (in microseconds) of the bucket holding the
+	 *         percentile, capped at the longest duration; 0 if none were
+	 *         counted
+	 */
+	public long getPercentileMicros(double percent)
+	{
+		long[] counts = new long[NUM_BUCKETS];
+		long count = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++)
+		{
+			counts[i] = this.buckets.get(i);
+			count += counts[i];
+		}
+		if (0 == count)
+		{ return 0; }
+		long rank = (long)Math.ceil(percent / 100 * count);
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++)
+		{
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0)
+			{ return Math.min(1L << i, this.getMaxMicros()); }
+		}
+		return this.getMaxMicros();
+	}
+
+	public String toString()
+	{
+		return String.format("n=%d mean=%dus p50<=%dus p90<=%dus "
+				+ "p99<=%dus max=%dus", this.getCount(), this.getMeanMicros(),
+				this.getPercentileMicros(50), this.getPercentileMicros(90),
+				this.getPercentileMicros(99), this.getMaxMicros());
+	}
+}
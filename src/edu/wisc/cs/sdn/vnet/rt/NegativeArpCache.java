@@ -0,0 +1,159 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Next hops that recently failed to resolve. While a next hop is held down,
+ * packets for it are answered with ICMP destination host unreachable right
+ * away instead of starting another round of ARP requests, so traffic to a
+ * dead host does not turn into a stream of ARP broadcasts.
+ * <p>
+ * The unreachable messages sent for held down next hops are limited to a
+ * number per second; packets beyond the limit are dropped silently. A next
+ * hop is released when its hold-down time passes or when it is heard from.
+ */
+public class NegativeArpCache
+{
+	/** Default time (in milliseconds) a next hop is held down */
+	public static final long DEFAULT_HOLD_DOWN = 20000;
+
+	/** Default maximum number of unreachable messages per second */
+	public static final int DEFAULT_UNREACHABLE_RATE = 10;
+
+	/** Length of a tick and number of buckets of the expiry timing wheel */
+	private static final long TICK_MILLIS = 100;
+	private static final int NUM_BUCKETS = 512;
+
+	/** Next hops held down; maps an IP address to the time (from
+	 *  System.currentTimeMillis) at which its hold-down ends */
+	private ArpTable entries;
+
+	/** Time (in milliseconds) next hops are held down; 0 disables */
+	private volatile long holdDown;
+
+	/** Removes next hops once their hold-down ends */
+	private TimingWheel wheel;
+
+	/** Limits the unreachable messages sent */
+	private TokenBucket unreachableLimit;
+
+	/** Number of packets for held down next hops, and of those answered
+	 *  with an unreachable message */
+	private LongAdder suppressed;
+	private LongAdder unreachables;
+
+	/**
+	 * Create an empty negative cache.
+	 */
+	public NegativeArpCache()
+	{
+		this.entries = new ArpTable();
+		this.holdDown = DEFAULT_HOLD_DOWN;
+		this.wheel = new TimingWheel("ARP hold-down expiry", TICK_MILLIS,
+				NUM_BUCKETS);
+		this.unreachableLimit = new TokenBucket(DEFAULT_UNREACHABLE_RATE);
+		this.suppressed = new LongAdder();
+		this.unreachables = new LongAdder();
+	}
+
+	/**
+	 * Set how long next hops that failed to resolve are held down. Next
+	 * hops held down before the change keep their old hold-down time.
+	 * @param holdDown time (in milliseconds); 0 to stop holding down
+	 */
+	public void setHoldDown(long holdDown)
+	{ this.holdDown = holdDown; }
+
+	/**
+	 * Limit how often packets for held down next hops are answered.
+	 * @param unreachableRate maximum number of unreachable messages per
+	 *        second
+	 */
+	public void setUnreachableRate(int unreachableRate)
+	{ this.unreachableLimit.setRate(unreachableRate); }
+
+	/**
+	 * Hold down a next hop that failed to resolve.
+	 * @param ip IP address of the next hop
+	 */
+	void add(final int ip)
+	{
+		long holdDown = this.holdDown;
+		if (holdDown <= 0)
+		{ return; }
+		final long until = System.currentTimeMillis() + holdDown;
+		this.entries.put(ip, until);
+		this.wheel.schedule(holdDown, new Runnable()
+		{
+			public void run()
+			{ entries.remove(ip, until); }
+		});
+	}
+
+	/**
+	 * Release a next hop, because it has been heard from.
+	 * @param ip IP address of the next hop
+	 */
+	void remove(int ip)
+	{
+		if (this.entries.get(ip) != ArpTable.NONE)
+		{ this.entries.remove(ip); }
+	}
+
+	/**
+	 * Checks whether a next hop is held down.
+	 * @param ip IP address of the next hop
+	 * @return true if packets for the next hop should not start resolving it
+	 */
+	public boolean contains(int ip)
+	{
+		long until = this.entries.get(ip);
+		return (until != ArpTable.NONE
+				&& System.currentTimeMillis() < until);
+	}
+
+	/**
+	 * Account for a packet for a held down next hop and decide whether it
+	 * is answered, within the rate limit.
+	 * @return true if an unreachable message should be sent for the packet
+	 */
+	boolean allowUnreachable()
+	{
+		this.suppressed.increment();
+		if (this.unreachableLimit.take() != 0)
+		{ return false; }
+		this.unreachables.increment();
+		return true;
+	}
+
+	/**
+	 * @return number of next hops held down
+	 */
+	public int size()
+	{ return this.entries.size(); }
+
+	/**
+	 * @return number of packets for held down next hops
+	 */
+	public long getSuppressed()
+	{ return this.suppressed.sum(); }
+
+	/**
+	 * @return number of unreachable messages sent for held down next hops
+	 */
+	public long getUnreachables()
+	{ return this.unreachables.sum(); }
+
+	/**
+	 * Stop releasing next hops whose hold-down ends.
+	 */
+	public void destroy()
+	{ this.wheel.stop(); }
+
+	public String toString()
+	{
+		return String.format("ARP hold-down: %d packets for unreachable "
+				+ "next hops, %d answered", this.getSuppressed(),
+				this.getUnreachables());
+	}
+}
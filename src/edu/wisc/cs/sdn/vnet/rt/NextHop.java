@@ -0,0 +1,95 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import net.floodlightcontroller.packet.IPv4;
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * One of the equal-cost next hops of a route entry.
+ */
+public class NextHop
+{
+	/** Gateway IP address; 0 if the destination is directly connected */
+	private int gatewayAddress;
+
+	/** Router interface out which packets should be sent to reach the
+	 *  destination or gateway */
+	private Iface iface;
+
+	/** Number of packets and bytes forwarded through this next hop */
+	private LongAdder packets;
+	private LongAdder bytes;
+
+	/**
+	 * Create a next hop.
+	 * @param gatewayAddress gateway IP address
+	 * @param iface the router interface out which packets should be sent
+	 *        to reach the destination or gateway
+	 */
+	public NextHop(int gatewayAddress, Iface iface)
+	{
+		this.gatewayAddress = gatewayAddress;
+		this.iface = iface;
+		this.packets = new LongAdder();
+		this.bytes = new LongAdder();
+	}
+
+	/**
+	 * Create a next hop that replaces another one in a route entry and 
+	 * keeps counting where it left off.
+	 * @param gatewayAddress gateway IP address
+	 * @param iface the router interface out which packets should be sent
+	 *        to reach the destination or gateway
+	 * @param replaced the next hop being replaced
+	 */
+	NextHop(int gatewayAddress, Iface iface, NextHop replaced)
+	{
+		this.gatewayAddress = gatewayAddress;
+		this.iface = iface;
+		this.packets = replaced.packets;
+		this.bytes = replaced.bytes;
+	}
+
+	/**
+	 * @return gateway IP address
+	 */
+	public int getGatewayAddress()
+	{ return this.gatewayAddress; }
+
+	/**
+	 * @return the router interface out which packets should be sent to
+	 *         reach the destination or gateway
+	 */
+	public Iface getInterface()
+	{ return this.iface; }
+
+	/**
+	 * Count a packet forwarded through this next hop.
+	 * @param length length of the packet in bytes
+	 */
+	public void countPacket(int length)
+	{
+		this.packets.increment();
+		this.bytes.add(length);
+	}
+
+	/**
+	 * @return number of packets forwarded through this next hop
+	 */
+	public long getPackets()
+	{ return this.packets.sum(); }
+
+	/**
+	 * @return number of bytes forwarded through this next hop
+	 */
+	public long getBytes()
+	{ return this.bytes.sum(); }
+
+	public String toString()
+	{
+		return String.format("%s \t%s",
+				IPv4.fromIPv4Address(this.gatewayAddress),
+				this.iface.getName());
+	}
+}
@@ -0,0 +1,209 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Packets waiting for their next hop to be resolved, keyed by the IP
+ * address of the next hop. Each next hop being resolved has an
+ * {@link ARPRequester} that holds its packets.
+ * <p>
+ * The number of packets waiting for one next hop and for all next hops
+ * together is limited. When a next hop's queue is full, either the new
+ * packet or the oldest waiting packet is dropped; when the limit for all
+ * next hops is reached, new packets are dropped. Packets are queued,
+ * flushed and dropped without locking.
+ */
+public class PendingPackets
+{
+	/** Which packet to drop when a next hop's queue is full */
+	public enum DropPolicy { NEWEST, OLDEST }
+
+	/** Default maximum number of packets waiting for one next hop */
+	public static final int DEFAULT_NEIGHBOR_LIMIT = 64;
+
+	/** Default maximum number of packets waiting for all next hops */
+	public static final int DEFAULT_GLOBAL_LIMIT = 16384;
+
+	/** Requesters for the next hops being resolved */
+	private ConcurrentHashMap<Integer,ARPRequester> requesters;
+
+	/** Limits on waiting packets and what to drop at the limit */
+	private volatile int neighborLimit;
+	private volatile int globalLimit;
+	private volatile DropPolicy dropPolicy;
+
+	/** Number of packets waiting for all next hops */
+	private AtomicInteger queued;
+
+	/** Number of packets queued, sent after their next hop was resolved, and
+	 *  dropped because a queue was full or the next hop did not resolve */
+	private LongAdder enqueued;
+	private LongAdder flushed;
+	private LongAdder dropped;
+
+	/** Largest number of packets waiting for all next hops at once */
+	private AtomicInteger peak;
+
+	/**
+	 * Create an empty table.
+	 */
+	public PendingPackets()
+	{
+		this.requesters = new ConcurrentHashMap<Integer,ARPRequester>();
+		this.neighborLimit = DEFAULT_NEIGHBOR_LIMIT;
+		this.globalLimit = DEFAULT_GLOBAL_LIMIT;
+		this.dropPolicy = DropPolicy.NEWEST;
+		this.queued = new AtomicInteger();
+		this.enqueued = new LongAdder();
+		this.flushed = new LongAdder();
+		this.dropped = new LongAdder();
+		this.peak = new AtomicInteger();
+	}
+
+	/**
+	 * Set the limits on waiting packets.
+	 * @param neighborLimit maximum number of packets waiting for one next hop
+	 * @param globalLimit maximum number of packets waiting for all next hops
+	 * @param dropPolicy which packet to drop when a next hop's queue is full
+	 */
+	public void setLimits(int neighborLimit, int globalLimit,
+			DropPolicy dropPolicy)
+	{
+		this.neighborLimit = neighborLimit;
+		this.globalLimit = globalLimit;
+		this.dropPolicy = dropPolicy;
+	}
+
+	/**
+	 * @return maximum number of packets waiting for one next hop
+	 */
+	int getNeighborLimit()
+	{ return this.neighborLimit; }
+
+	/**
+	 * @return which packet to drop when a next hop's queue is full
+	 */
+	DropPolicy getDropPolicy()
+	{ return this.dropPolicy; }
+
+	/**
+	 * @param nextHopIp IP address of a next hop
+	 * @return the requester resolving the next hop, null if there is none
+	 */
+	ARPRequester get(int nextHopIp)
+	{ return this.requesters.get(nextHopIp); }
+
+	/**
+	 * Add a requester for a next hop, unless the next hop already has one.
+	 * @param requester the requester
+	 * @return the next hop's existing requester, null if the requester was
+	 *         added
+	 */
+	ARPRequester putIfAbsent(ARPRequester requester)
+	{ return this.requesters.putIfAbsent(requester.getNextHopIp(), requester); }
+
+	/**
+	 * Remove a requester, if it is still the one for its next hop.
+	 * @param requester the requester
+	 */
+	void remove(ARPRequester requester)
+	{ this.requesters.remove(requester.getNextHopIp(), requester); }
+
+	/**
+	 * @return number of next hops being resolved
+	 */
+	public int size()
+	{ return this.requesters.size(); }
+
+	/**
+	 * Claim room for a packet in the global limit.
+	 * @return true if there was room
+	 */
+	boolean reserve()
+	{
+		int limit = this.globalLimit;
+		while (true)
+		{
+			int current = this.queued.get();
+			if (current >= limit)
+			{ return false; }
+			if (this.queued.compareAndSet(current, current + 1))
+			{
+				int peak = this.peak.get();
+				while (current + 1 > peak 
+						&& !this.peak.compareAndSet(peak, current + 1))
+				{ peak = this.peak.get(); }
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Give back room claimed for packets that no longer wait.
+	 * @param count number of packets
+	 */
+	void release(int count)
+	{ this.queued.addAndGet(-count); }
+
+	/**
+	 * Count a packet that was queued.
+	 */
+	void countEnqueued()
+	{ this.enqueued.increment(); }
+
+	/**
+	 * Count packets that were sent after their next hop was resolved.
+	 * @param count number of packets
+	 */
+	void countFlushed(int count)
+	{ this.flushed.add(count); }
+
+	/**
+	 * Count packets that were dropped.
+	 * @param count number of packets
+	 */
+	void countDropped(int count)
+	{ this.dropped.add(count); }
+
+	/**
+	 * @return number of packets waiting for all next hops
+	 */
+	public int getQueued()
+	{ return this.queued.get(); }
+
+	/**
+	 * @return largest number of packets that waited for all next hops at
+	 *         once
+	 */
+	public int getPeakQueued()
+	{ return this.peak.get(); }
+
+	/**
+	 * @return number of packets queued
+	 */
+	public long getEnqueued()
+	{ return this.enqueued.sum(); }
+
+	/**
+	 * @return number of packets sent after their next hop was resolved
+	 */
+	public long getFlushed()
+	{ return this.flushed.sum(); }
+
+	/**
+	 * @return number of packets dropped because a queue was full or their
+	 *         next hop did not resolve
+	 */
+	public long getDropped()
+	{ return this.dropped.sum(); }
+
+	public String toString()
+	{
+		return String.format(
+				"Pending packets: %d enqueued, %d flushed, %d dropped, "
+				+ "peak %d queued", this.getEnqueued(), this.getFlushed(),
+				this.getDropped(), this.getPeakQueued());
+	}
+}
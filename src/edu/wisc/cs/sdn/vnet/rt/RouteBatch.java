@@ -0,0 +1,142 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * A batch of changes to a route table that are applied together. Lookups
+ * see either the route table as it was before the batch was committed or
+ * the route table with all of the batch's changes, never a mix. Lookup
+ * structures are published once per commit rather than once per change.
+ */
+public class RouteBatch
+{
+	/** Kinds of staged changes */
+	enum ChangeType { INSERT, REMOVE, UPDATE }
+
+	/** A staged change to the route table */
+	static class Change
+	{
+		final ChangeType type;
+		final int dstIp;
+		final int maskIp;
+		final NextHop[] nextHops;
+
+		private Change(ChangeType type, int dstIp, int maskIp,
+				NextHop[] nextHops)
+		{
+			this.type = type;
+			this.dstIp = dstIp;
+			this.maskIp = maskIp;
+			this.nextHops = nextHops;
+		}
+	}
+
+	/** Route table the batch applies to */
+	private RouteTable routeTable;
+
+	/** Changes in the order they were staged */
+	private List<Change> changes;
+
+	/**
+	 * Create an empty batch for a route table.
+	 * @param routeTable route table the batch applies to
+	 */
+	RouteBatch(RouteTable routeTable)
+	{
+		this.routeTable = routeTable;
+		this.changes = new ArrayList<Change>();
+	}
+
+	/**
+	 * Stage adding an entry to the route table.
+	 * @param dstIp destination IP
+	 * @param gwIp gateway IP
+	 * @param maskIp subnet mask
+	 * @param iface router interface out which to send packets to reach the
+	 *        destination or gateway
+	 * @return this batch
+	 */
+	public RouteBatch insert(int dstIp, int gwIp, int maskIp, Iface iface)
+	{
+		return this.insert(dstIp, maskIp, 
+				new NextHop[] { new NextHop(gwIp, iface) });
+	}
+
+	/**
+	 * Stage adding an entry with several equal-cost next hops to the route
+	 * table.
+	 * @param dstIp destination IP
+	 * @param maskIp subnet mask
+	 * @param nextHops equal-cost next hops; must not be empty
+	 * @return this batch
+	 */
+	public RouteBatch insert(int dstIp, int maskIp, NextHop[] nextHops)
+	{
+		this.changes.add(new Change(ChangeType.INSERT, dstIp, maskIp,
+				nextHops));
+		return this;
+	}
+
+	/**
+	 * Stage removing an entry from the route table.
+	 * @param dstIp destination IP of the entry to remove
+	 * @param maskIp subnet mask of the entry to remove
+	 * @return this batch
+	 */
+	public RouteBatch remove(int dstIp, int maskIp)
+	{
+		this.changes.add(new Change(ChangeType.REMOVE, dstIp, maskIp, null));
+		return this;
+	}
+
+	/**
+	 * Stage updating one next hop of an entry in the route table, as
+	 * {@link RouteTable#update} does.
+	 * @param dstIp destination IP of the entry to update
+	 * @param maskIp subnet mask of the entry to update
+	 * @param gwIp new gateway IP address for the next hop
+	 * @param iface new router interface for the next hop
+	 * @return this batch
+	 */
+	public RouteBatch update(int dstIp, int maskIp, int gwIp, Iface iface)
+	{
+		this.changes.add(new Change(ChangeType.UPDATE, dstIp, maskIp,
+				new NextHop[] { new NextHop(gwIp, iface) }));
+		return this;
+	}
+
+	/**
+	 * @return number of staged changes
+	 */
+	public int size()
+	{ return this.changes.size(); }
+
+	/**
+	 * Apply all staged changes to the route table, in the order they were
+	 * staged, and publish them to lookups at once. The batch is empty
+	 * afterwards and can be reused.
+	 * @return number of changes that applied; removes and updates do not
+	 *         apply if the route table has no entry for their prefix
+	 */
+	public int commit()
+	{
+		int applied = this.routeTable.commit(this);
+		this.changes.clear();
+		return applied;
+	}
+
+	/**
+	 * Discard all staged changes.
+	 */
+	public void abort()
+	{ this.changes.clear(); }
+
+	/**
+	 * @return staged changes in the order they were staged
+	 */
+	List<Change> getChanges()
+	{ return this.changes; }
+}
@@ -0,0 +1,538 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import net.floodlightcontroller.packet.IPv4;
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Benchmark for route lookups. Builds synthetic route tables of several
+ * sizes, with a prefix length mix resembling an Internet routing table, and
+ * measures lookups against them for a stream of uniformly spread and a
+ * stream of skewed destinations. Every lookup engine is measured through
+ * {@link RouteTable#lookup} with and without the route cache, and through
+ * {@link RouteTable#lookupBatch} for bursts of destinations, next to a
+ * linear scan over all entries like the one route tables started out with.
+ * <p>
+ * Before an engine is measured, every destination in the stream is looked
+ * up through it and the result compared with the linear scan's; the
+ * benchmark stops with an error on the first mismatch.
+ * <p>
+ * Each measurement is warmed up first, then repeated; the mean and standard
+ * deviation of the time per lookup, and the bytes allocated per lookup, are
+ * reported.
+ * <p>
+ * Usage: RouteBench [-n size,...] [-w warmup_iterations]
+ * [-i measured_iterations] [-t ms_per_iteration] [-s seed]
+ */
+public class RouteBench
+{
+	/** Prefix lengths of generated routes and their relative frequencies */
+	private static final int[] LENGTHS =
+		{  8, 12, 14, 16, 17, 18, 19, 20, 21, 22, 23, 24, 28, 32 };
+	private static final int[] WEIGHTS =
+		{  1,  2,  4, 20,  8, 16, 30, 60, 60,100, 90,580, 20,  9 };
+
+	/** Number of destinations in each stream; a power of two */
+	private static final int STREAM_SIZE = 1 << 20;
+
+	/** Skew of the skewed stream: a fraction of the lookups goes to an
+	 *  equally small fraction of the routes */
+	private static final double HOT_ROUTES = 0.01;
+	private static final double HOT_LOOKUPS = 0.9;
+
+	/** Number of warmup and measured iterations, and length of each */
+	private int warmupIterations = 3;
+	private int measuredIterations = 5;
+	private long iterationNanos = 500L * 1000 * 1000;
+
+	/** Number of destinations looked up together in batch measurements */
+	private static final int BURST_SIZE = 32;
+
+	/** Number of route entries the linear scan may visit while checking
+	 *  its own index, per stream */
+	private static final long SCAN_CHECK_BUDGET = 1L << 28;
+
+	/** Keeps lookup results alive so lookups are not optimized away */
+	private volatile int sink;
+
+	/**
+	 * A linear scan over all entries, as route tables did before they had
+	 * lookup structures; serves as the baseline.
+	 */
+	private static class LinearScan
+	{
+		private final RouteEntry[] entries;
+
+		/** Entries by prefix and prefix length, and the prefix lengths in
+		 *  use in increasing order, for {@link #lookupIndexed} */
+		private final Map<Long,RouteEntry> byPrefix;
+		private final int[] lengths;
+
+		private LinearScan(RouteEntry[] entries)
+		{
+			this.entries = entries;
+			this.byPrefix = new HashMap<Long,RouteEntry>();
+			boolean[] used = new boolean[33];
+			for (RouteEntry entry : entries)
+			{
+				int length = Integer.bitCount(entry.getMaskAddress());
+				this.byPrefix.put(prefixKey(entry.getDestinationAddress(),
+						length), entry);
+				used[length] = true;
+			}
+			int[] lengths = new int[used.length];
+			int count = 0;
+			for (int length = 0; length < used.length; length++)
+			{
+				if (used[length])
+				{ lengths[count++] = length; }
+			}
+			this.lengths = Arrays.copyOf(lengths, count);
+		}
+
+		private static long prefixKey(int prefix, int length)
+		{ return ((prefix & 0xFFFFFFFFL) << 6) | length; }
+
+		private RouteEntry lookup(int ip)
+		{
+			RouteEntry best = null;
+			for (RouteEntry entry : this.entries)
+			{
+				if ((ip & entry.getMaskAddress())
+						== entry.getDestinationAddress()
+					&& (null == best
+						|| Integer.compareUnsigned(entry.getMaskAddress(),
+								best.getMaskAddress()) > 0))
+				{ best = entry; }
+			}
+			return best;
+		}
+
+		/**
+		 * Find the same entry as {@link #lookup}, by trying each prefix
+		 * length in use from the longest down; fast enough to compute the
+		 * expected result of every destination in a stream.
+		 * @param ip destination IP address
+		 * @return the matching entry with the longest prefix, null if none
+		 */
+		private RouteEntry lookupIndexed(int ip)
+		{
+			for (int i = this.lengths.length - 1; i >= 0; i--)
+			{
+				int length = this.lengths[i];
+				RouteEntry entry = this.byPrefix.get(prefixKey(
+						ip & RouteTrie.maskOf(length), length));
+				if (entry != null)
+				{ return entry; }
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Generate a route table with distinct random prefixes.
+	 * @param size number of routes
+	 * @param random source of randomness
+	 * @return the routes
+	 */
+	private static RouteEntry[] generateRoutes(int size, Random random)
+	{
+		int totalWeight = 0;
+		for (int weight : WEIGHTS)
+		{ totalWeight += weight; }
+
+		Iface[] ifaces = new Iface[4];
+		for (int i = 0; i < ifaces.length; i++)
+		{ ifaces[i] = new Iface("eth" + i); }
+
+		Set<Long> seen = new HashSet<Long>();
+		RouteEntry[] routes = new RouteEntry[size];
+		int count = 0;
+		while (count < size)
+		{
+			int pick = random.nextInt(totalWeight);
+			int l = 0;
+			while (pick >= WEIGHTS[l])
+			{ pick -= WEIGHTS[l++]; }
+			int mask = RouteTrie.maskOf(LENGTHS[l]);
+
+			// Keep prefixes within unicast space and off 0.0.0.0/8
+			int dst = (random.nextInt(223) + 1) << 24
+					| (random.nextInt() & 0xFFFFFF);
+			dst &= mask;
+			if (!seen.add(((long)dst << 6) | LENGTHS[l]))
+			{ continue; }
+			routes[count++] = new RouteEntry(dst,
+					random.nextInt() | 0x01000000, mask,
+					ifaces[random.nextInt(ifaces.length)]);
+		}
+		return routes;
+	}
+
+	/**
+	 * Generate a stream of destinations. Most destinations fall within a
+	 * route's prefix; the rest are random and may match nothing.
+	 * @param routes routes the destinations are aimed at
+	 * @param skewed whether a few routes get most of the destinations
+	 * @param random source of randomness
+	 * @return the destinations
+	 */
+	private static int[] generateStream(RouteEntry[] routes, boolean skewed,
+			Random random)
+	{
+		int hot = Math.max(1, (int)(routes.length * HOT_ROUTES));
+		int[] stream = new int[STREAM_SIZE];
+		for (int i = 0; i < stream.length; i++)
+		{
+			if (random.nextInt(10) == 0)
+			{
+				stream[i] = random.nextInt();
+				continue;
+			}
+			RouteEntry route;
+			if (skewed && random.nextDouble() < HOT_LOOKUPS)
+			{ route = routes[random.nextInt(hot)]; }
+			else
+			{ route = routes[random.nextInt(routes.length)]; }
+			stream[i] = route.getDestinationAddress()
+					| (random.nextInt() & ~route.getMaskAddress());
+		}
+		return stream;
+	}
+
+	/**
+	 * @return number of bytes allocated by the current thread so far, -1 if
+	 *         the JVM does not count allocations
+	 */
+	private static long allocatedBytes()
+	{
+		java.lang.management.ThreadMXBean bean =
+				ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+		{
+			com.sun.management.ThreadMXBean sunBean =
+					(com.sun.management.ThreadMXBean)bean;
+			if (sunBean.isThreadAllocatedMemorySupported())
+			{ return sunBean.getCurrentThreadAllocatedBytes(); }
+		}
+		return -1;
+	}
+
+	/**
+	 * Run lookups for a stream of destinations for one iteration.
+	 * @param table route table to look destinations up in, null to use the
+	 *        linear scan
+	 * @param scan linear scan to use if there is no route table
+	 * @param stream destinations
+	 * @return number of lookups; lookups are done in rounds until the
+	 *         iteration's time has passed
+	 */
+	private long iteration(RouteTable table, LinearScan scan, int[] stream,
+			boolean batch)
+	{
+		if (batch)
+		{ return this.batchIteration(table, stream); }
+
+		int round = (null == table) ? 16 : 4096;
+		long lookups = 0;
+		int pos = 0;
+		int result = 0;
+		long deadline = System.nanoTime() + this.iterationNanos;
+		do
+		{
+			for (int i = 0; i < round; i++)
+			{
+				int ip = stream[pos];
+				pos = (pos + 1) & (STREAM_SIZE - 1);
+				RouteEntry entry = (null == table) ? scan.lookup(ip)
+						: table.lookup(ip);
+				if (entry != null)
+				{ result += entry.getMaskAddress(); }
+			}
+			lookups += round;
+		}
+		while (System.nanoTime() < deadline);
+		this.sink += result;
+		return lookups;
+	}
+
+	/**
+	 * Run batch lookups for a stream of destinations for one iteration.
+	 * @param table route table to look destinations up in
+	 * @param stream destinations
+	 * @return number of lookups
+	 */
+	private long batchIteration(RouteTable table, int[] stream)
+	{
+		int[] burst = new int[BURST_SIZE];
+		RouteEntry[] out = new RouteEntry[BURST_SIZE];
+		long lookups = 0;
+		int pos = 0;
+		int result = 0;
+		long deadline = System.nanoTime() + this.iterationNanos;
+		do
+		{
+			for (int i = 0; i < 4096 / BURST_SIZE; i++)
+			{
+				System.arraycopy(stream, pos, burst, 0, BURST_SIZE);
+				pos = (pos + BURST_SIZE) & (STREAM_SIZE - 1);
+				table.lookupBatch(burst, BURST_SIZE, out);
+				for (RouteEntry entry : out)
+				{
+					if (entry != null)
+					{ result += entry.getMaskAddress(); }
+				}
+			}
+			lookups += 4096;
+		}
+		while (System.nanoTime() < deadline);
+		this.sink += result;
+		return lookups;
+	}
+
+	/**
+	 * Compute the expected lookup result of every destination in a stream.
+	 * The linear scan's index gives the results; the linear scan itself
+	 * checks as many of them as {@link #SCAN_CHECK_BUDGET} allows.
+	 * @param scan linear scan over the routes
+	 * @param stream destinations
+	 * @return the expected result for each destination, null if it matches
+	 *         no route
+	 */
+	private static RouteEntry[] expectedResults(LinearScan scan, int[] stream)
+	{
+		RouteEntry[] expected = new RouteEntry[stream.length];
+		for (int i = 0; i < stream.length; i++)
+		{ expected[i] = scan.lookupIndexed(stream[i]); }
+
+		int stride = (int)Math.max(1,
+				(long)scan.entries.length * stream.length / SCAN_CHECK_BUDGET);
+		for (int i = 0; i < stream.length; i += stride)
+		{ check("linear", stream[i], expected[i], scan.lookup(stream[i])); }
+		return expected;
+	}
+
+	/**
+	 * Look up every destination in a stream and compare each result with
+	 * the expected one.
+	 * @param name name of the configuration being checked
+	 * @param table route table to look destinations up in
+	 * @param stream destinations
+	 * @param batch whether to look destinations up in bursts
+	 * @param expected the expected result for each destination
+	 */
+	private static void verify(String name, RouteTable table, int[] stream,
+			boolean batch, RouteEntry[] expected)
+	{
+		if (batch)
+		{
+			RouteEntry[] out = new RouteEntry[BURST_SIZE];
+			int[] burst = new int[BURST_SIZE];
+			for (int pos = 0; pos < stream.length; pos += BURST_SIZE)
+			{
+				System.arraycopy(stream, pos, burst, 0, BURST_SIZE);
+				table.lookupBatch(burst, BURST_SIZE, out);
+				for (int i = 0; i < BURST_SIZE; i++)
+				{ check(name, burst[i], expected[pos + i], out[i]); }
+			}
+		}
+		else
+		{
+			for (int i = 0; i < stream.length; i++)
+			{ check(name, stream[i], expected[i], table.lookup(stream[i])); }
+		}
+	}
+
+	/**
+	 * Compare a lookup result with the expected one, and stop the benchmark
+	 * if they are not the same route.
+	 * @param name name of the configuration being checked
+	 * @param ip destination IP address looked up
+	 * @param expected the expected result, null if none
+	 * @param actual the result of the lookup, null if none
+	 */
+	private static void check(String name, int ip, RouteEntry expected,
+			RouteEntry actual)
+	{
+		if (expected == actual)
+		{ return; }
+		if (expected != null && actual != null
+				&& expected.getDestinationAddress()
+					== actual.getDestinationAddress()
+				&& expected.getMaskAddress() == actual.getMaskAddress()
+				&& expected.getGatewayAddress() == actual.getGatewayAddress()
+				&& expected.getInterface() == actual.getInterface())
+		{ return; }
+		System.err.println(String.format(
+				"%s returned the wrong route for %s: expected %s, got %s",
+				name, IPv4.fromIPv4Address(ip), expected, actual));
+		System.exit(1);
+	}
+
+	/**
+	 * Measure lookups and print the results.
+	 * @param name name of the configuration being measured
+	 * @param table route table to look destinations up in, null to use the
+	 *        linear scan
+	 * @param scan linear scan to use if there is no route table
+	 * @param stream destinations
+	 * @param batch whether to look destinations up in bursts
+	 * @param expected the expected result for each destination, checked
+	 *        before a route table is measured
+	 */
+	private void measure(String name, RouteTable table, LinearScan scan,
+			int[] stream, boolean batch, RouteEntry[] expected)
+	{
+		if (table != null)
+		{ verify(name, table, stream, batch, expected); }
+		for (int i = 0; i < this.warmupIterations; i++)
+		{ this.iteration(table, scan, stream, batch); }
+
+		double[] nanosPerLookup = new double[this.measuredIterations];
+		long totalLookups = 0;
+		long allocated = allocatedBytes();
+		for (int i = 0; i < this.measuredIterations; i++)
+		{
+			long start = System.nanoTime();
+			long lookups = this.iteration(table, scan, stream, batch);
+			nanosPerLookup[i] = (double)(System.nanoTime() - start) / lookups;
+			totalLookups += lookups;
+		}
+		double bytesPerLookup = -1;
+		if (allocated >= 0)
+		{
+			bytesPerLookup = (double)(allocatedBytes() - allocated)
+					/ totalLookups;
+		}
+
+		double mean = 0;
+		for (double value : nanosPerLookup)
+		{ mean += value; }
+		mean /= nanosPerLookup.length;
+		double variance = 0;
+		for (double value : nanosPerLookup)
+		{ variance += (value - mean) * (value - mean); }
+		double stddev = Math.sqrt(variance / nanosPerLookup.length);
+
+		System.out.println(String.format("%-16s %12.1f %10.1f %12.3f",
+				name, mean, stddev, bytesPerLookup));
+	}
+
+	/**
+	 * Run the benchmark for one route table size.
+	 * @param size number of routes
+	 * @param seed seed for generating routes and destinations
+	 */
+	private void run(int size, long seed)
+	{
+		Random random = new Random(seed);
+		RouteEntry[] routes = generateRoutes(size, random);
+		int[] uniform = generateStream(routes, false, random);
+		int[] skewed = generateStream(routes, true, random);
+
+		LinearScan scan = new LinearScan(routes);
+		RouteTable table = new RouteTable();
+		RouteBatch batch = table.beginBatch();
+		for (RouteEntry route : routes)
+		{
+			batch.insert(route.getDestinationAddress(),
+					route.getMaskAddress(), route.getNextHops());
+		}
+		batch.commit();
+
+		String[] streamNames = { "uniform", "skewed" };
+		int[][] streams = { uniform, skewed };
+		for (int s = 0; s < streams.length; s++)
+		{
+			RouteEntry[] expected = expectedResults(scan, streams[s]);
+			System.out.println(String.format(
+					"\n%d routes, %s destinations", size, streamNames[s]));
+			System.out.println(String.format("%-16s %12s %10s %12s",
+					"Engine", "ns/lookup", "stddev", "bytes/lookup"));
+			this.measure("linear", null, scan, streams[s], false, expected);
+			String[] engines =
+				{ RouteTable.ENGINE_TRIE, RouteTable.ENGINE_DIR248 };
+			for (String engine : engines)
+			{
+				table.setEngine(engine);
+				table.setCacheSize(0);
+				this.measure(engine, table, null, streams[s], false,
+						expected);
+				this.measure(engine + "+batch", table, null, streams[s], true,
+						expected);
+				table.setCacheSize(RouteTable.DEFAULT_CACHE_SIZE);
+				this.measure(engine + "+cache", table, null, streams[s], 
+						false, expected);
+			}
+		}
+	}
+
+	private static void usage()
+	{
+		System.out.println("RouteBench [-n size,...] [-w warmup_iterations] "
+				+ "[-i measured_iterations] [-t ms_per_iteration] [-s seed]");
+	}
+
+	public static void main(String[] args)
+	{
+		RouteBench bench = new RouteBench();
+		int[] sizes = { 1000, 100000, 1000000 };
+		long seed = 640;
+
+		try
+		{
+			for (int i = 0; i < args.length; i++)
+			{
+				String arg = args[i];
+				if (arg.equals("-h"))
+				{
+					usage();
+					return;
+				}
+				else if (arg.equals("-n"))
+				{
+					String[] parts = args[++i].split(",");
+					sizes = new int[parts.length];
+					for (int j = 0; j < parts.length; j++)
+					{ sizes[j] = Integer.parseInt(parts[j]); }
+				}
+				else if (arg.equals("-w"))
+				{ bench.warmupIterations = Integer.parseInt(args[++i]); }
+				else if (arg.equals("-i"))
+				{ bench.measuredIterations = Integer.parseInt(args[++i]); }
+				else if (arg.equals("-t"))
+				{
+					bench.iterationNanos =
+							Long.parseLong(args[++i]) * 1000 * 1000;
+				}
+				else if (arg.equals("-s"))
+				{ seed = Long.parseLong(args[++i]); }
+				else
+				{
+					usage();
+					return;
+				}
+			}
+		}
+		catch (RuntimeException e)
+		{
+			usage();
+			return;
+		}
+
+		System.out.println("Route lookup benchmark: sizes "
+				+ Arrays.toString(sizes) + ", " + bench.warmupIterations
+				+ " warmup and " + bench.measuredIterations
+				+ " measured iterations of "
+				+ (bench.iterationNanos / 1000000) + " ms");
+		for (int size : sizes)
+		{ bench.run(size, seed); }
+	}
+}
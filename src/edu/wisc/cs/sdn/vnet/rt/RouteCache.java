@@ -0,0 +1,85 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+/**
+ * Small direct-mapped cache from destination IP address to route entry,
+ * owned by a single thread. Each slot records the generation of the FIB
+ * snapshot it was filled from, so a change to the route table invalidates
+ * every slot without touching them.
+ */
+class RouteCache
+{
+	/** Destination IP address cached in each slot */
+	private final int[] keys;
+
+	/** Snapshot generation each slot was filled from; zero if empty */
+	private final int[] generations;
+
+	/** Route entry cached in each slot; may be null for no route */
+	private final RouteEntry[] entries;
+
+	/** Number of bits of the hash that select a slot */
+	private final int bits;
+
+	/** Number of lookups answered from, and not from, the cache; written
+	 *  only by the owning thread, so other threads see approximate values */
+	private long hits;
+	private long misses;
+
+	/**
+	 * Create an empty cache.
+	 * @param size number of slots; rounded up to a power of two
+	 */
+	RouteCache(int size)
+	{
+		int bits = 32 - Integer.numberOfLeadingZeros(Math.max(size, 2) - 1);
+		this.bits = bits;
+		this.keys = new int[1 << bits];
+		this.generations = new int[1 << bits];
+		this.entries = new RouteEntry[1 << bits];
+		this.hits = 0;
+		this.misses = 0;
+	}
+
+	/**
+	 * Find the route entry for an IP address, consulting the snapshot only
+	 * if the cache does not hold an answer from the same snapshot.
+	 * @param ip IP address
+	 * @param snapshot current lookup structures for the route table
+	 * @return the matching route entry, null if none exists
+	 */
+	RouteEntry lookup(int ip, FibSnapshot snapshot)
+	{
+		int slot = (ip * 0x9E3779B9) >>> (32 - this.bits);
+		int generation = snapshot.getGeneration();
+		if (this.keys[slot] == ip && this.generations[slot] == generation)
+		{
+			this.hits++;
+			return this.entries[slot];
+		}
+
+		this.misses++;
+		RouteEntry entry = snapshot.lookup(ip);
+		this.keys[slot] = ip;
+		this.generations[slot] = generation;
+		this.entries[slot] = entry;
+		return entry;
+	}
+
+	/**
+	 * @return number of slots in the cache
+	 */
+	int size()
+	{ return this.keys.length; }
+
+	/**
+	 * @return number of lookups answered from the cache
+	 */
+	long getHits()
+	{ return this.hits; }
+
+	/**
+	 * @return number of lookups not answered from the cache
+	 */
+	long getMisses()
+	{ return this.misses; }
+}
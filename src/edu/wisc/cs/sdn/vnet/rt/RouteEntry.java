@@ -4,23 +4,20 @@ import net.floodlightcontroller.packet.IPv4;
 import edu.wisc.cs.sdn.vnet.Iface;
 
 /**
- * An entry in a route table.
+ * An entry in a route table. Entries do not change once created; a route
+ * is changed by replacing its entry, see {@link #withNextHop(int, Iface)}.
  * @author Aaron Gember-Jacobson and Anubhavnidhi Abhashkumar
  */
 public class RouteEntry 
 {
 	/** Destination IP address */
-	private int destinationAddress;
-	
-	/** Gateway IP address */
-	private int gatewayAddress;
+	private final int destinationAddress;
 	
 	/** Subnet mask */
-	private int maskAddress;
+	private final int maskAddress;
 	
-	/** Router interface out which packets should be sent to reach
-	 * the destination or gateway */
-	private Iface iface;
+	/** Equal-cost next hops for the destination; never empty */
+	private final NextHop[] nextHops;
 	
 	/**
 	 * Create a new route table entry.
@@ -32,11 +29,23 @@ public class RouteEntry
 	 */
 	public RouteEntry(int destinationAddress, int gatewayAddress, 
 			int maskAddress, Iface iface)
+	{
+		this(destinationAddress, maskAddress,
+				new NextHop[] { new NextHop(gatewayAddress, iface) });
+	}
+	
+	/**
+	 * Create a new route table entry with several equal-cost next hops.
+	 * @param destinationAddress destination IP address
+	 * @param maskAddress subnet mask
+	 * @param nextHops equal-cost next hops; must not be empty
+	 */
+	public RouteEntry(int destinationAddress, int maskAddress,
+			NextHop[] nextHops)
 	{
 		this.destinationAddress = destinationAddress;
-		this.gatewayAddress = gatewayAddress;
 		this.maskAddress = maskAddress;
-		this.iface = iface;
+		this.nextHops = nextHops;
 	}
 	
 	/**
@@ -46,13 +55,10 @@ public class RouteEntry
 	{ return this.destinationAddress; }
 	
 	/**
-	 * @return gateway IP address
+	 * @return gateway IP address of the first next hop
 	 */
 	public int getGatewayAddress()
-	{ return this.gatewayAddress; }
-
-    public void setGatewayAddress(int gatewayAddress)
-    { this.gatewayAddress = gatewayAddress; }
+	{ return this.nextHops[0].getGatewayAddress(); }
 	
 	/**
 	 * @return subnet mask 
@@ -61,21 +67,69 @@ public class RouteEntry
 	{ return this.maskAddress; }
 	
 	/**
-	 * @return the router interface out which packets should be sent to 
-	 *         reach the destination or gateway
+	 * @return the router interface of the first next hop
 	 */
 	public Iface getInterface()
-	{ return this.iface; }
-
-    public void setInterface(Iface iface)
-    { this.iface = iface; }
+	{ return this.nextHops[0].getInterface(); }
+	
+	/**
+	 * Create a copy of this entry with one next hop changed. The next hop 
+	 * out the given interface is changed, or the first next hop if none 
+	 * goes out that interface; it keeps its packet and byte counts. The 
+	 * other next hops are kept as they are.
+	 * @param gatewayAddress new gateway IP address of the next hop
+	 * @param iface new router interface of the next hop
+	 * @return the new entry
+	 */
+	RouteEntry withNextHop(int gatewayAddress, Iface iface)
+	{
+		int index = 0;
+		for (int i = 0; i < this.nextHops.length; i++)
+		{
+			if (this.nextHops[i].getInterface() == iface)
+			{
+				index = i;
+				break;
+			}
+		}
+		NextHop[] nextHops = this.nextHops.clone();
+		nextHops[index] = new NextHop(gatewayAddress, iface, 
+				this.nextHops[index]);
+		return new RouteEntry(this.destinationAddress, this.maskAddress,
+				nextHops);
+	}
+	
+	/**
+	 * @return equal-cost next hops for the destination
+	 */
+	public NextHop[] getNextHops()
+	{ return this.nextHops; }
+	
+	/**
+	 * Choose one of the equal-cost next hops for a flow. All packets of a
+	 * flow hash to the same value and so take the same next hop.
+	 * @param flowHash hash of the fields that identify the flow
+	 * @return the next hop for the flow
+	 */
+	public NextHop selectNextHop(int flowHash)
+	{
+		if (1 == this.nextHops.length)
+		{ return this.nextHops[0]; }
+		int index = (int)(((flowHash & 0xFFFFFFFFL) * this.nextHops.length)
+				>>> 32);
+		return this.nextHops[index];
+	}
 	
 	public String toString()
 	{
-		return String.format("%s \t%s \t%s \t%s",
+		StringBuilder result = new StringBuilder(String.format(
+				"%s \t%s \t%s \t%s",
 				IPv4.fromIPv4Address(this.destinationAddress),
-				IPv4.fromIPv4Address(this.gatewayAddress),
+				IPv4.fromIPv4Address(this.getGatewayAddress()),
 				IPv4.fromIPv4Address(this.maskAddress),
-				this.iface.getName());
+				this.getInterface().getName()));
+		for (int i = 1; i < this.nextHops.length; i++)
+		{ result.append(" \t").append(this.nextHops[i].toString()); }
+		return result.toString();
 	}
 }
@@ -1,32 +1,175 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import net.floodlightcontroller.packet.IPv4;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import edu.wisc.cs.sdn.vnet.Iface;
 
 /**
- * Route table for a router.
+ * Route table for a router. Changes to the table are serialized and each one
+ * publishes a new immutable snapshot of the lookup structures, so lookups
+ * never take a lock.
  * @author Aaron Gember-Jacobson
  */
 public class RouteTable 
 {
-	/** Entries in the route table */
-	private List<RouteEntry> entries; 
+	/** Lookup engine that walks the trie */
+	public static final String ENGINE_TRIE = "trie";
+	
+	/** Lookup engine that uses a DIR-24-8 table compiled from the trie */
+	public static final String ENGINE_DIR248 = "dir248";
+	
+	/** Default number of slots in each thread's route cache */
+	public static final int DEFAULT_CACHE_SIZE = 1024;
+	
+	/** Entries in the route table in insertion order, keyed on prefix; 
+	 *  also guards changes to the table */
+	private Map<Long,RouteEntry> entries; 
+	
+	/** Longest prefix match index over the entries in the route table */
+	private RouteTrie trie;
+	
+	/** DIR-24-8 table kept in step with the trie; null unless the DIR-24-8
+	 *  engine is selected */
+	private Dir248Fib dir248;
+	
+	/** Lookup structures as of the last change to the table */
+	private volatile FibSnapshot snapshot;
+	
+	/** Number of snapshots published so far */
+	private int generation;
+	
+	/** Route cache for each thread that performs lookups; null if route 
+	 *  caching is disabled */
+	private volatile ThreadLocal<RouteCache> caches;
+	
+	/** Route caches created for all threads since the cache size was last
+	 *  set, for reporting statistics */
+	private volatile List<RouteCache> allCaches;
+	
+	/** Hits and misses of route caches discarded when the cache size was 
+	 *  set */
+	private volatile long retiredHits;
+	private volatile long retiredMisses;
 	
 	/**
 	 * Initialize an empty route table.
 	 */
 	public RouteTable()
-	{ this.entries = new LinkedList<RouteEntry>(); }
+	{
+		this.entries = new LinkedHashMap<Long,RouteEntry>();
+		this.trie = RouteTrie.EMPTY;
+		this.dir248 = null;
+		this.generation = 0;
+		this.allCaches = new CopyOnWriteArrayList<RouteCache>();
+		this.retiredHits = 0;
+		this.retiredMisses = 0;
+		this.setCacheSize(DEFAULT_CACHE_SIZE);
+		this.publish();
+	}
+	
+	/**
+	 * Set the size of the route cache each thread keeps in front of the 
+	 * lookup structures. Threads start over with empty caches.
+	 * @param size number of slots, rounded up to a power of two; 0 disables
+	 *        route caching
+	 */
+	public synchronized void setCacheSize(final int size)
+	{
+		// Drop the caches of the previous size, keeping their statistics
+		for (RouteCache cache : this.allCaches)
+		{
+			this.retiredHits += cache.getHits();
+			this.retiredMisses += cache.getMisses();
+		}
+		final List<RouteCache> created = new CopyOnWriteArrayList<RouteCache>();
+		this.allCaches = created;
+		
+		if (size <= 0)
+		{
+			this.caches = null;
+			return;
+		}
+		this.caches = new ThreadLocal<RouteCache>()
+		{
+			protected RouteCache initialValue()
+			{
+				RouteCache cache = new RouteCache(size);
+				created.add(cache);
+				return cache;
+			}
+		};
+	}
+	
+	/**
+	 * @return number of lookups answered from route caches
+	 */
+	public long getCacheHits()
+	{
+		long hits = this.retiredHits;
+		for (RouteCache cache : this.allCaches)
+		{ hits += cache.getHits(); }
+		return hits;
+	}
+	
+	/**
+	 * @return number of lookups that missed in route caches
+	 */
+	public long getCacheMisses()
+	{
+		long misses = this.retiredMisses;
+		for (RouteCache cache : this.allCaches)
+		{ misses += cache.getMisses(); }
+		return misses;
+	}
+	
+	/**
+	 * Select the engine used for longest prefix match lookups.
+	 * @param engine {@link #ENGINE_TRIE} or {@link #ENGINE_DIR248}
+	 * @return true if the engine was selected, false if it is unknown
+	 */
+	public boolean setEngine(String engine)
+	{
+		synchronized(this.entries)
+		{
+			if (engine.equals(ENGINE_TRIE))
+			{ this.dir248 = null; }
+			else if (engine.equals(ENGINE_DIR248))
+			{
+				if (null == this.dir248)
+				{
+					this.dir248 = new Dir248Fib();
+					for (RouteEntry entry : this.entries.values())
+					{
+						this.dir248.insert(entry, 
+								entry.getDestinationAddress(),
+								RouteTrie.lengthOf(entry.getMaskAddress()));
+					}
+				}
+			}
+			else
+			{ return false; }
+			this.publish();
+		}
+		return true;
+	}
+	
+	/**
+	 * Make the current contents of the table visible to lookups.
+	 */
+	private void publish()
+	{
+		Dir248Fib.Table table = null;
+		if (this.dir248 != null)
+		{ table = this.dir248.publish(); }
+		this.generation++;
+		if (0 == this.generation)
+		{ this.generation++; }
+		this.snapshot = new FibSnapshot(this.trie, table, this.generation);
+	}
 	
 	/**
 	 * Lookup the route entry that matches a given IP address.
@@ -35,128 +178,148 @@ public class RouteTable
 	 */
 	public RouteEntry lookup(int ip)
 	{
-		synchronized(this.entries){
-		    /*****************************************************************/
-		    /* TODO: Find the route entry with the longest prefix match      */
-		    System.out.println("\nIp address in router = "+ip);
-		    
-		    /*****************************************************************/
-		    /* TODO: Find the route entry with the longest prefix match      */
-		    RouteEntry re = null;
-		    RouteEntry maxre = null;
-		    
-		    for(int i=0;i<entries.size();i++){
-			
-			re = entries.get(i);
-			int max = Integer.MIN_VALUE;
-			
-			//subnetmask AND ip == subnet number then look for longest prefix
-			if((re.getMaskAddress() & ip) == re.getDestinationAddress()){
-			    
-			    //match - longest prefix will match with mask having max value
-			    if(re.getMaskAddress() >= max){
-				max = re.getMaskAddress();
-				maxre = re;
-			    }
-			}
-			
-		    }
-		    
-		    return maxre;
-		    
-		    /*****************************************************************/
-		}
+		FibSnapshot snapshot = this.snapshot;
+		ThreadLocal<RouteCache> caches = this.caches;
+		if (null == caches)
+		{ return snapshot.lookup(ip); }
+		return caches.get().lookup(ip, snapshot);
 	}
 	
+	/**
+	 * Lookup the route entries that match several IP addresses at once, 
+	 * such as the destinations of a burst of packets. The lookups overlap
+	 * their memory accesses, which makes a batch faster than the same 
+	 * number of single lookups. All addresses are looked up in the same 
+	 * version of the table. Batches bypass the route cache and allocate 
+	 * nothing.
+	 * @param dstIps IP addresses
+	 * @param count number of IP addresses to look up, starting from the
+	 *        first element of dstIps
+	 * @param out receives the matching route entry, or null if none exists,
+	 *        for each IP address; must have room for count elements
+	 */
+	public void lookupBatch(int[] dstIps, int count, RouteEntry[] out)
+	{ this.snapshot.lookupBatch(dstIps, count, out); }
+	
 	/**
 	 * Populate the route table from a file.
 	 * @param filename name of the file containing the static route table
 	 * @param router the route table is associated with
 	 * @return true if route table was successfully loaded, otherwise false
 	 */
-	public boolean load(String filename, Router router)
+	public boolean load(String filename, final Router router)
 	{
-		// Open the file
-		BufferedReader reader;
-		try 
-		{
-			FileReader fileReader = new FileReader(filename);
-			reader = new BufferedReader(fileReader);
-		}
-		catch (FileNotFoundException e) 
-		{
-			System.err.println(e.toString());
-			return false;
-		}
-		
-		while (true)
+		TableFileParser<RouteEntry> parser = new TableFileParser<RouteEntry>()
 		{
-			// Read a route entry from the file
-			String line = null;
-			try 
-			{ line = reader.readLine(); }
-			catch (IOException e) 
-			{
-				System.err.println(e.toString());
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
-			
-			// Stop if we have reached the end of the file
-			if (null == line)
-			{ break; }
-			
-			// Parse fields for route entry
-			String ipPattern = "(\\d+\\.\\d+\\.\\d+\\.\\d+)";
-			String ifacePattern = "([a-zA-Z0-9]+)";
-			Pattern pattern = Pattern.compile(String.format(
-                        "%s\\s+%s\\s+%s\\s+%s", 
-                        ipPattern, ipPattern, ipPattern, ifacePattern));
-			Matcher matcher = pattern.matcher(line);
-			if (!matcher.matches() || matcher.groupCount() != 4)
+			protected RouteEntry parseLine(Cursor cursor) 
+					throws ParseException
 			{
-				System.err.println("Invalid entry in routing table file");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
+				// Parse fields for route entry
+				int dstIp = cursor.nextIp();
+				if (0 == dstIp)
+				{ throw new ParseException("invalid destination IP"); }
+				int gwIp = cursor.nextIp();
+				int maskIp = cursor.nextIp();
+				if (0 == maskIp)
+				{ throw new ParseException("invalid subnet mask"); }
+				String ifaceName = cursor.nextWord();
+				Iface iface = router.getInterface(ifaceName);
+				if (null == iface)
+				{ throw new ParseException("invalid interface " + ifaceName); }
+				
+				// Additional equal-cost next hops follow as gateway/interface
+				// pairs
+				List<NextHop> nextHops = new ArrayList<NextHop>();
+				nextHops.add(new NextHop(gwIp, iface));
+				while (!cursor.atEnd())
+				{
+					gwIp = cursor.nextIp();
+					ifaceName = cursor.nextWord();
+					iface = router.getInterface(ifaceName);
+					if (null == iface)
+					{ throw new ParseException("invalid interface " + ifaceName); }
+					nextHops.add(new NextHop(gwIp, iface));
+				}
+				return new RouteEntry(dstIp, maskIp, 
+						nextHops.toArray(new NextHop[nextHops.size()]));
 			}
-
-			int dstIp = IPv4.toIPv4Address(matcher.group(1));
-			if (0 == dstIp)
-			{
-				System.err.println("Error loading route table, cannot convert "
-						+ matcher.group(1) + " to valid IP");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
-			}
-			
-			int gwIp = IPv4.toIPv4Address(matcher.group(2));
-			
-			int maskIp = IPv4.toIPv4Address(matcher.group(3));
-			if (0 == maskIp)
+		};
+		
+		List<RouteEntry> loaded = parser.parse(filename, "route table");
+		if (null == loaded)
+		{ return false; }
+		
+		this.addAll(loaded);
+		return true;
+	}
+	
+	/**
+	 * Populate the route table from a binary FIB file.
+	 * @param filename name of the file written by {@link #save(String)}
+	 * @param router the route table is associated with
+	 * @return true if route table was successfully loaded, otherwise false
+	 */
+	public boolean loadBinary(String filename, Router router)
+	{
+		long start = System.nanoTime();
+		List<RouteEntry> loaded = FibFile.read(filename, router);
+		if (null == loaded)
+		{ return false; }
+		System.out.println(String.format(
+				"Read %d route table entries in %d ms", loaded.size(),
+				(System.nanoTime() - start) / 1000000));
+		this.addAll(loaded);
+		return true;
+	}
+	
+	/**
+	 * Write the entries in the route table to a binary FIB file.
+	 * @param filename name of the file
+	 * @return true if the file was written, otherwise false
+	 */
+	public boolean save(String filename)
+	{
+		synchronized(this.entries)
+		{ return FibFile.write(filename, this.entries.values()); }
+	}
+	
+	/**
+	 * Add many entries to the route table and publish them at once.
+	 * @param loaded the entries to add
+	 */
+	private void addAll(List<RouteEntry> loaded)
+	{
+		long start = System.nanoTime();
+		synchronized(this.entries)
+		{
+			if (this.entries.isEmpty())
 			{
-				System.err.println("Error loading route table, cannot convert "
-						+ matcher.group(3) + " to valid IP");
-				try { reader.close(); } catch (IOException f) {};
-				return false;
+				// Build the trie in one pass rather than one insert at a time
+				for (RouteEntry entry : loaded)
+				{
+					this.entries.put(keyOf(entry.getDestinationAddress(),
+							RouteTrie.lengthOf(entry.getMaskAddress())), entry);
+				}
+				this.trie = RouteTrie.build(this.entries.values());
+				if (this.dir248 != null)
+				{
+					for (RouteEntry entry : this.entries.values())
+					{
+						this.dir248.insert(entry, 
+								entry.getDestinationAddress(),
+								RouteTrie.lengthOf(entry.getMaskAddress()));
+					}
+				}
 			}
-			
-			String ifaceName = matcher.group(4).trim();
-			Iface iface = router.getInterface(ifaceName);
-			if (null == iface)
+			else
 			{
-				System.err.println("Error loading route table, invalid interface "
-						+ matcher.group(4));
-				try { reader.close(); } catch (IOException f) {};
-				return false;
+				for (RouteEntry entry : loaded)
+				{ this.add(entry); }
 			}
-			
-			// Add an entry to the route table
-			this.insert(dstIp, gwIp, maskIp, iface);
+			this.publish();
 		}
-	
-		// Close the file
-		try { reader.close(); } catch (IOException f) {};
-		return true;
+		System.out.println(String.format("Built route lookup structures in %d ms",
+				(System.nanoTime() - start) / 1000000));
 	}
 	
 	/**
@@ -168,14 +331,45 @@ public class RouteTable
 	 *        destination or gateway
 	 */
 	public void insert(int dstIp, int gwIp, int maskIp, Iface iface)
+	{ this.insert(dstIp, maskIp, new NextHop[] { new NextHop(gwIp, iface) }); }
+	
+	/**
+	 * Add an entry with several equal-cost next hops to the route table.
+	 * @param dstIp destination IP
+	 * @param maskIp subnet mask
+	 * @param nextHops equal-cost next hops; must not be empty
+	 */
+	public void insert(int dstIp, int maskIp, NextHop[] nextHops)
 	{
-		RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface);
+		RouteEntry entry = new RouteEntry(dstIp, maskIp, nextHops);
         synchronized(this.entries)
         { 
-            this.entries.add(entry);
+            this.add(entry);
+            this.publish();
         }
 	}
 	
+	/**
+	 * Add an entry to the route table without publishing it to lookups.
+	 * Must be called with the route table locked.
+	 * @param entry the entry to add
+	 */
+	private void add(RouteEntry entry)
+	{
+		int dstIp = entry.getDestinationAddress();
+		int maskIp = entry.getMaskAddress();
+		int length = RouteTrie.lengthOf(maskIp);
+		RouteEntry old = this.entries.put(keyOf(dstIp, length), entry);
+		this.trie = this.trie.insert(dstIp, length, entry);
+		if (this.dir248 != null)
+		{
+			if (old != null)
+			{ this.dir248.replace(old, entry); }
+			else
+			{ this.dir248.insert(entry, dstIp, length); }
+		}
+	}
+	
 	/**
 	 * Remove an entry from the route table.
 	 * @param dstIP destination IP of the entry to remove
@@ -186,20 +380,43 @@ public class RouteTable
 	{ 
         synchronized(this.entries)
         {
-            RouteEntry entry = this.find(dstIp, maskIp);
-            if (null == entry)
+            if (!this.delete(dstIp, maskIp))
             { return false; }
-            this.entries.remove(entry);
+            this.publish();
         }
         return true;
     }
 	
 	/**
-	 * Update an entry in the route table.
+	 * Remove an entry from the route table without publishing the change to
+	 * lookups. Must be called with the route table locked.
+	 * @return true if a matching entry was found and removed, otherwise false
+	 */
+	private boolean delete(int dstIp, int maskIp)
+	{
+		RouteEntry entry = this.find(dstIp, maskIp);
+		if (null == entry)
+		{ return false; }
+		int length = RouteTrie.lengthOf(maskIp);
+		this.entries.remove(keyOf(dstIp, length));
+		this.trie = this.trie.remove(dstIp, length);
+		if (this.dir248 != null)
+		{
+			this.dir248.remove(entry, dstIp, length, 
+					this.trie.lookupParent(dstIp, length));
+		}
+		return true;
+	}
+	
+	/**
+	 * Update an entry in the route table. Only one of the entry's next hops
+	 * changes: the one out the given interface, or the first one if none 
+	 * goes out that interface. Other equal-cost next hops are kept, and
+	 * every next hop keeps its packet and byte counts.
 	 * @param dstIP destination IP of the entry to update
      * @param maskIp subnet mask of the entry to update
-	 * @param gatewayAddress new gateway IP address for matching entry
-	 * @param iface new router interface for matching entry
+	 * @param gatewayAddress new gateway IP address for the next hop
+	 * @param iface new router interface for the next hop
      * @return true if a matching entry was found and updated, otherwise false
 	 */
 	public boolean update(int dstIp, int maskIp, int gwIp, 
@@ -207,14 +424,80 @@ public class RouteTable
 	{
         synchronized(this.entries)
         {
-            RouteEntry entry = this.find(dstIp, maskIp);
-            if (null == entry)
+            if (!this.change(dstIp, maskIp, gwIp, iface))
             { return false; }
-            entry.setGatewayAddress(gwIp);
-            entry.setInterface(iface);
+            this.publish();
         }
         return true;
 	}
+	
+	/**
+	 * Update an entry in the route table without publishing the change to
+	 * lookups. Must be called with the route table locked.
+	 * @return true if a matching entry was found and updated, otherwise false
+	 */
+	private boolean change(int dstIp, int maskIp, int gwIp, Iface iface)
+	{
+		RouteEntry old = this.find(dstIp, maskIp);
+		if (null == old)
+		{ return false; }
+		
+		// Entries may be in use by lookups, so replace rather than modify
+		this.add(old.withNextHop(gwIp, iface));
+		return true;
+	}
+	
+	/**
+	 * Start a batch of changes to the route table. Changes staged in the 
+	 * batch are not visible to lookups until the batch is committed, and
+	 * are then published all at once.
+	 * @return an empty batch
+	 */
+	public RouteBatch beginBatch()
+	{ return new RouteBatch(this); }
+	
+	/**
+	 * Apply a batch of changes and publish them to lookups at once.
+	 * @param batch the staged changes
+	 * @return number of changes that applied; removes and updates do not
+	 *         apply if the route table has no entry for their prefix
+	 */
+	int commit(RouteBatch batch)
+	{
+		int applied = 0;
+		synchronized(this.entries)
+		{
+			for (RouteBatch.Change change : batch.getChanges())
+			{
+				boolean ok = true;
+				switch (change.type)
+				{
+				case INSERT:
+					this.add(new RouteEntry(change.dstIp, change.maskIp,
+							change.nextHops));
+					break;
+				case REMOVE:
+					ok = this.delete(change.dstIp, change.maskIp);
+					break;
+				case UPDATE:
+					ok = this.change(change.dstIp, change.maskIp, 
+							change.nextHops[0].getGatewayAddress(),
+							change.nextHops[0].getInterface());
+					break;
+				}
+				if (ok)
+				{ applied++; }
+			}
+			this.publish();
+		}
+		return applied;
+	}
+
+    /**
+     * @return key identifying a prefix in the map of entries
+     */
+    private static long keyOf(int dstIp, int length)
+    { return ((long)(dstIp & RouteTrie.maskOf(length)) << 6) | length; }
 
     /**
 	 * Find an entry in the route table.
@@ -225,15 +508,7 @@ public class RouteTable
     private RouteEntry find(int dstIp, int maskIp)
     {
         synchronized(this.entries)
-        {
-            for (RouteEntry entry : this.entries)
-            {
-                if ((entry.getDestinationAddress() == dstIp)
-                    && (entry.getMaskAddress() == maskIp)) 
-                { return entry; }
-            }
-        }
-        return null;
+        { return this.trie.find(dstIp, RouteTrie.lengthOf(maskIp)); }
     }
 	
 	public String toString()
@@ -243,10 +518,11 @@ public class RouteTable
             if (0 == this.entries.size())
             { return " WARNING: route table empty"; }
             
-            String result = "Destination\tGateway\t\tMask\t\tIface\n";
-            for (RouteEntry entry : entries)
-            { result += entry.toString()+"\n"; }
-		    return result;
+            StringBuilder result = new StringBuilder(
+                    "Destination\tGateway\t\tMask\t\tIface\n");
+            for (RouteEntry entry : this.entries.values())
+            { result.append(entry.toString()).append("\n"); }
+		    return result.toString();
         }
 	}
 }
@@ -0,0 +1,403 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Path-compressed binary (Patricia) trie of route entries, keyed on the
+ * destination prefix and prefix length of each entry. The cost of a lookup
+ * is bounded by the length of the longest prefix in the trie, not by the
+ * number of entries. Subnet masks are assumed to be contiguous.
+ * <p>
+ * Tries are immutable: insert and remove copy the path to the changed node
+ * and return a new trie that shares all other nodes with the old one, so a
+ * trie can be read from any thread without locking.
+ */
+class RouteTrie
+{
+	/** A node in the trie; only nodes with an entry correspond to a route */
+	private static final class Node
+	{
+		/** Prefix bits covered by this node; bits beyond length are zero */
+		private final int prefix;
+
+		/** Number of leading bits of the prefix that are significant */
+		private final int length;
+
+		/** Route entry for exactly this prefix; null for branching nodes */
+		private final RouteEntry entry;
+
+		/** Children for a next bit of 0 and 1, respectively */
+		private final Node[] children;
+
+		private Node(int prefix, int length, RouteEntry entry, Node zero,
+				Node one)
+		{
+			this.prefix = prefix;
+			this.length = length;
+			this.entry = entry;
+			this.children = new Node[] { zero, one };
+		}
+
+		/**
+		 * @return a copy of this node with a different child
+		 */
+		private Node withChild(int dir, Node child)
+		{
+			if (0 == dir)
+			{ return new Node(prefix, length, entry, child, children[1]); }
+			return new Node(prefix, length, entry, children[0], child);
+		}
+
+		/**
+		 * @return a copy of this node with a different entry
+		 */
+		private Node withEntry(RouteEntry entry)
+		{ return new Node(prefix, length, entry, children[0], children[1]); }
+	}
+
+	/** Number of lookups a batch lookup walks down the trie together */
+	private static final int BATCH_WIDTH = 16;
+
+	/** Current node of each walk in each thread's batch lookups */
+	private static final ThreadLocal<Node[]> batchWalks =
+		new ThreadLocal<Node[]>()
+		{
+			protected Node[] initialValue()
+			{ return new Node[BATCH_WIDTH]; }
+		};
+
+	/** An empty trie */
+	static final RouteTrie EMPTY = new RouteTrie(null, 0);
+
+	/** Root of the trie; null if the trie is empty */
+	private final Node root;
+
+	/** Number of route entries in the trie */
+	private final int size;
+
+	private RouteTrie(Node root, int size)
+	{
+		this.root = root;
+		this.size = size;
+	}
+
+	/**
+	 * @param length prefix length
+	 * @return subnet mask with the given number of leading ones
+	 */
+	static int maskOf(int length)
+	{ return (0 == length) ? 0 : (0xFFFFFFFF << (32 - length)); }
+
+	/**
+	 * @param mask a contiguous subnet mask
+	 * @return number of leading ones in the mask
+	 */
+	static int lengthOf(int mask)
+	{ return Integer.bitCount(mask); }
+
+	/**
+	 * @param key an IP address or prefix
+	 * @param pos bit position, counting from the most significant bit
+	 * @return the bit of the key at the given position
+	 */
+	private static int bitAt(int key, int pos)
+	{ return (key >>> (31 - pos)) & 1; }
+
+	/**
+	 * @return number of leading bits two prefixes have in common, limited to
+	 *         the shorter of the two prefix lengths
+	 */
+	private static int commonLength(int a, int aLength, int b, int bLength)
+	{
+		int common = Integer.numberOfLeadingZeros(a ^ b);
+		return Math.min(common, Math.min(aLength, bLength));
+	}
+
+	/**
+	 * @return number of route entries in the trie
+	 */
+	int size()
+	{ return this.size; }
+
+	/**
+	 * Find the entry with the longest prefix matching an IP address.
+	 * @param ip IP address
+	 * @return the matching route entry, null if none exists
+	 */
+	RouteEntry lookup(int ip)
+	{
+		RouteEntry best = null;
+		Node node = this.root;
+		while (node != null)
+		{
+			if ((ip & maskOf(node.length)) != node.prefix)
+			{ break; }
+			if (node.entry != null)
+			{ best = node.entry; }
+			if (32 == node.length)
+			{ break; }
+			node = node.children[bitAt(ip, node.length)];
+		}
+		return best;
+	}
+
+	/**
+	 * Find the entries with the longest prefix matching several IP addresses.
+	 * The walks for a group of addresses go down the trie in lock step, one
+	 * level at a time, so the node fetches of different walks overlap
+	 * instead of waiting on each other.
+	 * @param ips IP addresses
+	 * @param count number of IP addresses to look up
+	 * @param out receives the matching route entry, or null, for each
+	 *        address
+	 */
+	void lookupBatch(int[] ips, int count, RouteEntry[] out)
+	{
+		Node[] walks = batchWalks.get();
+		for (int base = 0; base < count; base += BATCH_WIDTH)
+		{
+			int width = Math.min(BATCH_WIDTH, count - base);
+			for (int j = 0; j < width; j++)
+			{
+				walks[j] = this.root;
+				out[base + j] = null;
+			}
+			
+			int active = (null == this.root) ? 0 : width;
+			while (active > 0)
+			{
+				active = 0;
+				for (int j = 0; j < width; j++)
+				{
+					Node node = walks[j];
+					if (null == node)
+					{ continue; }
+					int ip = ips[base + j];
+					if ((ip & maskOf(node.length)) != node.prefix)
+					{
+						walks[j] = null;
+						continue;
+					}
+					if (node.entry != null)
+					{ out[base + j] = node.entry; }
+					node = (32 == node.length) ? null
+							: node.children[bitAt(ip, node.length)];
+					walks[j] = node;
+					if (node != null)
+					{ active++; }
+				}
+			}
+		}
+	}
+
+	/**
+	 * Find the entry with the longest prefix that strictly covers a prefix.
+	 * @param prefix destination prefix
+	 * @param length prefix length
+	 * @return the covering route entry, null if none exists
+	 */
+	RouteEntry lookupParent(int prefix, int length)
+	{
+		RouteEntry best = null;
+		Node node = this.root;
+		while (node != null && node.length < length)
+		{
+			if ((prefix & maskOf(node.length)) != node.prefix)
+			{ break; }
+			if (node.entry != null)
+			{ best = node.entry; }
+			node = node.children[bitAt(prefix, node.length)];
+		}
+		return best;
+	}
+
+	/**
+	 * Find the entry for exactly the given prefix.
+	 * @param prefix destination prefix
+	 * @param length prefix length
+	 * @return the route entry for the prefix, null if none exists
+	 */
+	RouteEntry find(int prefix, int length)
+	{
+		prefix &= maskOf(length);
+		Node node = this.root;
+		while (node != null && node.length <= length)
+		{
+			if (commonLength(node.prefix, node.length, prefix, length)
+					< node.length)
+			{ return null; }
+			if (node.length == length)
+			{ return node.entry; }
+			node = node.children[bitAt(prefix, node.length)];
+		}
+		return null;
+	}
+
+	/**
+	 * Add an entry for a prefix, replacing any existing entry for the same
+	 * prefix.
+	 * @param prefix destination prefix
+	 * @param length prefix length
+	 * @param entry route entry for the prefix
+	 * @return a trie that contains the entry
+	 */
+	RouteTrie insert(int prefix, int length, RouteEntry entry)
+	{
+		prefix &= maskOf(length);
+		int size = this.size;
+		if (null == this.find(prefix, length))
+		{ size++; }
+		return new RouteTrie(insert(this.root, prefix, length, entry), size);
+	}
+
+	/**
+	 * Add an entry for a prefix to a subtree.
+	 * @return new root of the subtree
+	 */
+	private static Node insert(Node node, int prefix, int length,
+			RouteEntry entry)
+	{
+		if (null == node)
+		{ return new Node(prefix, length, entry, null, null); }
+
+		int common = commonLength(node.prefix, node.length, prefix, length);
+		if (common < node.length)
+		{
+			// Split the edge leading to node
+			Node leaf = null;
+			int branchPrefix = prefix & maskOf(common);
+			RouteEntry branchEntry = null;
+			if (common == length)
+			{ branchEntry = entry; }
+			else
+			{ leaf = new Node(prefix, length, entry, null, null); }
+			if (0 == bitAt(node.prefix, common))
+			{ return new Node(branchPrefix, common, branchEntry, node, leaf); }
+			return new Node(branchPrefix, common, branchEntry, leaf, node);
+		}
+
+		if (node.length == length)
+		{ return node.withEntry(entry); }
+
+		int dir = bitAt(prefix, node.length);
+		return node.withChild(dir, insert(node.children[dir], prefix, length,
+				entry));
+	}
+
+	/**
+	 * Build a trie from many entries at once, without the path copying of
+	 * repeated inserts. If several entries have the same prefix, the last
+	 * one wins.
+	 * @param entries route entries
+	 * @return a trie that contains the entries
+	 */
+	static RouteTrie build(Collection<RouteEntry> entries)
+	{
+		RouteEntry[] input = entries.toArray(new RouteEntry[entries.size()]);
+
+		// Sort by prefix, then by length, then by position in the input; the
+		// prefix is offset so that signed order matches unsigned order
+		long[] keys = new long[input.length];
+		for (int i = 0; i < input.length; i++)
+		{
+			int length = lengthOf(input[i].getMaskAddress());
+			int prefix = input[i].getDestinationAddress() & maskOf(length);
+			keys[i] = ((long)(prefix ^ 0x80000000) << 32) 
+					| ((long)length << 26) | i;
+		}
+		Arrays.sort(keys);
+
+		// Keep only the last entry for each prefix
+		int count = 0;
+		int[] prefixes = new int[input.length];
+		int[] lengths = new int[input.length];
+		RouteEntry[] sorted = new RouteEntry[input.length];
+		for (long key : keys)
+		{
+			int prefix = (int)(key >>> 32) ^ 0x80000000;
+			int length = (int)(key >>> 26) & 0x3F;
+			if (count > 0 && prefixes[count - 1] == prefix
+					&& lengths[count - 1] == length)
+			{ count--; }
+			prefixes[count] = prefix;
+			lengths[count] = length;
+			sorted[count] = input[(int)(key & 0x3FFFFFF)];
+			count++;
+		}
+
+		Node root = (0 == count) ? null
+				: build(sorted, prefixes, lengths, 0, count);
+		return new RouteTrie(root, count);
+	}
+
+	/**
+	 * Build the subtree for a non-empty range of entries sorted by prefix and
+	 * length.
+	 * @return root of the subtree
+	 */
+	private static Node build(RouteEntry[] entries, int[] prefixes,
+			int[] lengths, int lo, int hi)
+	{
+		// The subtree's root covers the bits all entries in range share
+		int common = commonLength(prefixes[lo], 32, prefixes[hi - 1], 32);
+		for (int i = lo; i < hi; i++)
+		{ common = Math.min(common, lengths[i]); }
+		int prefix = prefixes[lo] & maskOf(common);
+
+		// An entry for exactly that prefix sorts first
+		RouteEntry entry = null;
+		if (lengths[lo] == common)
+		{ entry = entries[lo++]; }
+
+		// Split the rest on the next bit
+		int mid = lo;
+		while (mid < hi && 0 == bitAt(prefixes[mid], common))
+		{ mid++; }
+		Node zero = (lo < mid) ? build(entries, prefixes, lengths, lo, mid)
+				: null;
+		Node one = (mid < hi) ? build(entries, prefixes, lengths, mid, hi)
+				: null;
+		return new Node(prefix, common, entry, zero, one);
+	}
+
+	/**
+	 * Remove the entry for a prefix.
+	 * @param prefix destination prefix
+	 * @param length prefix length
+	 * @return a trie without an entry for the prefix
+	 */
+	RouteTrie remove(int prefix, int length)
+	{
+		prefix &= maskOf(length);
+		if (null == this.find(prefix, length))
+		{ return this; }
+		return new RouteTrie(remove(this.root, prefix, length), 
+				this.size - 1);
+	}
+
+	/**
+	 * Remove the entry for a prefix from a subtree, which must contain it.
+	 * @return new root of the subtree
+	 */
+	private static Node remove(Node node, int prefix, int length)
+	{
+		if (node.length == length)
+		{ node = node.withEntry(null); }
+		else
+		{
+			int dir = bitAt(prefix, node.length);
+			node = node.withChild(dir, remove(node.children[dir], prefix,
+					length));
+		}
+
+		// Collapse branching nodes that no longer branch
+		if (node.entry != null)
+		{ return node; }
+		if (null == node.children[0])
+		{ return node.children[1]; }
+		if (null == node.children[1])
+		{ return node.children[0]; }
+		return node;
+	}
+}
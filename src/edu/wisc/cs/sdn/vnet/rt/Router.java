@@ -1,17 +1,24 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
 
 import net.floodlightcontroller.packet.*;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
 
 /**
  * @author Aaron Gember-Jacobson and Anubhavnidhi Abhashkumar
@@ -28,8 +35,26 @@ public class Router extends Device
 	private final short IPV4ETHERTYPE = 0X0800;
 
 	
-	/** HashMap of IPs(key) resolved and their ARPRequester threads(value) packets waiting **/
-	private ConcurrentHashMap<Integer, ARPRequester> activeThreads= new ConcurrentHashMap<Integer, ARPRequester>();
+	/** Requesters for the IPs being resolved, with their packets waiting **/
+	private PendingPackets pendingPackets = new PendingPackets();
+	
+	/** Next hops that recently failed to resolve */
+	private NegativeArpCache negativeArpCache;
+	
+	/** Limits the ARP requests sent out of each interface */
+	private ArpRequestLimiter arpRequestLimiter;
+	
+	/** Outcomes of ARP resolution */
+	private ArpStats arpStats;
+	
+	/** Runs ARP retransmissions and timeouts for all requesters */
+	private ScheduledExecutorService arpScheduler;
+	
+	/** Number of IPv4 packets dropped because their header was malformed */
+	private LongAdder malformedDropped = new LongAdder();
+	
+	/** The router's interfaces, for handleFrame to check without an iterator */
+	private volatile Iface[] ifaceArray = new Iface[0];
 	
 	/**
 	 * Creates a router for a specific host.
@@ -40,8 +65,50 @@ public class Router extends Device
 		super(host,logfile);
 		this.routeTable = new RouteTable();
 		this.arpCache = new ArpCache();
+		this.negativeArpCache = new NegativeArpCache();
+		this.arpRequestLimiter = new ArpRequestLimiter();
+		this.arpStats = new ArpStats();
+		this.arpScheduler = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory()
+				{
+					public Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, "ARP requests");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		this.arpCache.setRefresher(new ArpCache.Refresher()
+		{
+			public void refresh(int ip, long mac)
+			{ sendArpRefresh(ip, mac); }
+		});
 	}
 
+	/**
+	 * @return ARP cache for the router
+	 */
+	public ArpCache getArpCache()
+	{ return this.arpCache; }
+
+	/**
+	 * @return next hops that recently failed to resolve
+	 */
+	public NegativeArpCache getNegativeArpCache()
+	{ return this.negativeArpCache; }
+
+	/**
+	 * @return limits on the ARP requests sent out of each interface
+	 */
+	public ArpRequestLimiter getArpRequestLimiter()
+	{ return this.arpRequestLimiter; }
+
+	/**
+	 * @return outcomes of ARP resolution, by interface and next hop
+	 */
+	public ArpStats getArpStats()
+	{ return this.arpStats; }
+
 	/**
 	 * @return routing table for the router
 	 */
@@ -66,6 +133,39 @@ public class Router extends Device
 		System.out.print(this.routeTable.toString());
 		System.out.println("-------------------------------------------------");
 	}
+
+	/**
+	 * Load a new routing table from a binary FIB file.
+	 * @param fibFile the name of the file written by {@link #saveRouteTable}
+	 */
+	public void loadBinaryRouteTable(String fibFile)
+	{
+		if (!routeTable.loadBinary(fibFile, this))
+		{
+			System.err.println("Error setting up routing table from binary FIB file "
+					+ fibFile);
+			System.exit(1);
+		}
+
+		System.out.println("Loaded binary route table");
+		System.out.println("-------------------------------------------------");
+		System.out.print(this.routeTable.toString());
+		System.out.println("-------------------------------------------------");
+	}
+
+	/**
+	 * Write the routing table to a binary FIB file.
+	 * @param fibFile the name of the file
+	 */
+	public void saveRouteTable(String fibFile)
+	{
+		if (!routeTable.save(fibFile))
+		{
+			System.err.println("Error writing binary FIB file " + fibFile);
+			return;
+		}
+		System.out.println("Wrote binary route table to " + fibFile);
+	}
 	
 
 
@@ -89,8 +189,174 @@ public class Router extends Device
 	}
 	
 	
-	public ConcurrentHashMap<Integer, ARPRequester> getActiveThreads(){
-		return activeThreads;
+	/**
+	 * Write the learned ARP cache entries to a checkpoint.
+	 * @param out the body of the checkpoint
+	 */
+	protected void saveState(DataOutputStream out) throws IOException
+	{ this.arpCache.save(out); }
+	
+	/**
+	 * Restore learned ARP cache entries from a checkpoint.
+	 * @param in the body of the checkpoint
+	 * @param downtime time (in milliseconds) since the checkpoint was written
+	 */
+	protected void restoreState(DataInputStream in, long downtime) 
+			throws IOException
+	{
+		int restored = this.arpCache.restore(in, downtime);
+		System.out.println(String.format(
+				"Restored %d ARP cache entries, aged by %d ms", restored,
+				downtime));
+	}
+	
+	/**
+	 * Add an interface to the router.
+	 * @param ifaceName the name of the interface
+	 */
+	@Override
+	public Iface addInterface(String ifaceName)
+	{
+		Iface iface = super.addInterface(ifaceName);
+		this.ifaceArray = this.interfaces.values().toArray(new Iface[0]);
+		return iface;
+	}
+	
+	/**
+	 * Report route cache and ARP statistics, stop expiring ARP cache entries and 
+	 * close the PCAP dump file.
+	 */
+	public void destroy()
+	{
+		this.arpCache.destroy();
+		this.negativeArpCache.destroy();
+		this.arpScheduler.shutdownNow();
+		System.out.println(String.format("Route cache: %d hits, %d misses",
+				this.routeTable.getCacheHits(), 
+				this.routeTable.getCacheMisses()));
+		System.out.println(String.format("Dropped %d malformed IPv4 packets",
+				this.malformedDropped.sum()));
+		System.out.println(this.pendingPackets.toString());
+		System.out.println(this.negativeArpCache.toString());
+		System.out.println(this.arpRequestLimiter.toString());
+		System.out.println(String.format("ARP refreshes: %d sent, %d skipped by the rate limit",
+				this.arpCache.getRefreshes(), this.arpCache.getRefreshesSkipped()));
+		System.out.print(this.arpStats.toString());
+		super.destroy();
+	}
+	
+	/**
+	 * Drop IPv4 packets with a malformed header or a wrong checksum before
+	 * they are parsed, checking the header in the received bytes.
+	 * @param frame the bytes holding the frame
+	 * @param offset where the frame starts
+	 * @param length length of the frame
+	 * @return false if the frame holds a malformed IPv4 packet
+	 */
+	public boolean acceptFrame(byte[] frame, int offset, int length)
+	{
+		if (length < 14)
+			return false;
+		int headerLength = 14;
+		int etherType = ((frame[offset + 12] & 0xff) << 8) | (frame[offset + 13] & 0xff);
+		if (etherType == 0x8100 && length >= 18) {
+			headerLength = 18;
+			etherType = ((frame[offset + 16] & 0xff) << 8) | (frame[offset + 17] & 0xff);
+		}
+		if (etherType != Ethernet.TYPE_IPv4)
+			return true;
+		if (IPv4.isHeaderValid(frame, offset + headerLength, length - headerLength))
+			return true;
+		malformedDropped.increment();
+		return false;
+	}
+	
+	/**
+	 * Forward transit IPv4 packets directly in the received bytes: decrement
+	 * the TTL, update the checksum, rewrite the MAC addresses in place and
+	 * send the frame from the same buffer. Packets for the router, packets
+	 * whose TTL expires, packets with no route and packets whose next hop is
+	 * not resolved are left to handlePacket.
+	 * @param frame the bytes holding the frame, already accepted by acceptFrame
+	 * @param offset where the frame starts
+	 * @param length length of the frame
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the packet was forwarded
+	 */
+	public boolean handleFrame(byte[] frame, int offset, int length, Iface inIface)
+	{
+		//Only untagged IPv4; acceptFrame has checked the header
+		if(length < 14 + 20 || frame[offset + 12] != 0x08 || frame[offset + 13] != 0x00)
+			return false;
+		int ip = offset + 14;
+		if((frame[ip + 8] & 0xff) <= 1)
+			return false;
+		int destinationAddress = getInt(frame, ip + 16);
+		Iface[] ifaces = ifaceArray;
+		for(int i = 0; i < ifaces.length; i++)
+			if(ifaces[i].getIpAddress() == destinationAddress)
+				return false;
+
+		RouteEntry routeEntry = routeTable.lookup(destinationAddress);
+		if(routeEntry == null)
+			return false;
+
+		//Hash the flow as handlePacket does, ports included for TCP and UDP
+		//packets that are not fragments
+		byte protocol = frame[ip + 9];
+		int headerLength = (frame[ip] & 0xf) * 4;
+		int ports = 0;
+		if((protocol == IPv4.PROTOCOL_TCP || protocol == IPv4.PROTOCOL_UDP)
+				&& !IPv4.isFragment(frame, ip)
+				&& length - 14 - headerLength >= 4)
+			ports = getInt(frame, ip + headerLength);
+		NextHop nextHop = routeEntry.selectNextHop(
+				flowHash(getInt(frame, ip + 12), destinationAddress, protocol, ports));
+		Iface outIface = nextHop.getInterface();
+
+		int nextHopIP = (nextHop.getGatewayAddress() == 0) ? destinationAddress : nextHop.getGatewayAddress();
+		long nextHopMAC = arpCache.lookupMac(nextHopIP);
+		if(nextHopMAC == ArpCache.NO_MAC)
+			return false;
+
+		IPv4.decrementTtl(frame, ip);
+		for(int i = 0; i < 6; i++)
+			frame[offset + i] = (byte)(nextHopMAC >>> (40 - 8 * i));
+		System.arraycopy(outIface.getMacBytes(), 0, frame, offset + 6, 6);
+
+		if(Log.sample(Log.Subsystem.ROUTER))
+			Log.log(Log.Subsystem.ROUTER, Log.Level.DEBUG, "*** -> Router forwarded packet for %s out %s",
+					IPv4.fromIPv4Address(destinationAddress), outIface.getName());
+
+		nextHop.countPacket(((frame[ip + 2] & 0xff) << 8) | (frame[ip + 3] & 0xff));
+		sendFrame(frame, offset, length, outIface);
+		return true;
+	}
+	
+	/**
+	 * Read a big-endian int from a frame, without wrapping it in a buffer.
+	 * @param frame the bytes holding the frame
+	 * @param index where the int starts
+	 * @return the int
+	 */
+	private static int getInt(byte[] frame, int index)
+	{
+		return ((frame[index] & 0xff) << 24) | ((frame[index + 1] & 0xff) << 16)
+				| ((frame[index + 2] & 0xff) << 8) | (frame[index + 3] & 0xff);
+	}
+	
+	/**
+	 * @return number of IPv4 packets dropped because their header was malformed
+	 */
+	public long getMalformedDropped(){
+		return malformedDropped.sum();
+	}
+	
+	/**
+	 * @return packets waiting for their next hop to be resolved
+	 */
+	public PendingPackets getPendingPackets(){
+		return pendingPackets;
 	}
 
 	
@@ -134,16 +400,64 @@ public class Router extends Device
 	}
 
 	
+	/**
+	 * Sends a unicast ARP request to a neighbor whose ARP cache entry is
+	 * about to change state, so the reply refreshes the entry. The refresh
+	 * is skipped if the interface's ARP request limit is reached.
+	 * @param ip IP address of the neighbor
+	 * @param mac MAC address the ARP cache has for the neighbor
+	 */
+	private void sendArpRefresh(int ip, long mac)
+	{
+		Iface outIface = getNeighborInterface(ip);
+		if(outIface == null)
+			return;
+		if(arpRequestLimiter.acquire(outIface) != 0)
+			return;
+		Ethernet etherARPReq = genArpRequest(ip, outIface);
+		etherARPReq.setDestinationMACAddress(MACAddress.valueOf(mac).toBytes());
+		sendPacket(etherARPReq, outIface);
+	}
+	
+	/**
+	 * Finds the interface a neighbor is reached on. Of the equal-cost next
+	 * hops of the route to the neighbor, that is the one whose gateway is the
+	 * neighbor, or else a directly connected one, preferably on the
+	 * neighbor's subnet.
+	 * @param ip IP address of the neighbor
+	 * @return the interface, null if the neighbor is not reached directly
+	 */
+	private Iface getNeighborInterface(int ip)
+	{
+		RouteEntry routeEntry = routeTable.lookup(ip);
+		if(routeEntry == null)
+			return null;
+		Iface onSubnet = null;
+		Iface direct = null;
+		for(NextHop nextHop : routeEntry.getNextHops())
+		{
+			Iface iface = nextHop.getInterface();
+			if(nextHop.getGatewayAddress() == ip)
+				return iface;
+			if(nextHop.getGatewayAddress() != 0)
+				continue;
+			int mask = iface.getSubnetMask();
+			if(onSubnet == null && (iface.getIpAddress() & mask) == (ip & mask))
+				onSubnet = iface;
+			if(direct == null)
+				direct = iface;
+		}
+		return (onSubnet != null) ? onSubnet : direct;
+	}
+	
 	/**
 	 * Generates ARP request packet.
-	 * @param etherPacket for which this arp request is generated
+	 * @param nextHopIP the IP address of the next hop to resolve
 	 * @param outIface the interface of to send this request out on
 	 * @return Ethernet packet with ARP payload for request
 	 */
-	public Ethernet genArpRequest(Ethernet etherPacket, Iface outIface)
+	public Ethernet genArpRequest(int nextHopIP, Iface outIface)
 	{
-		IPv4 ipv4Packet = (IPv4)etherPacket.getPayload();
-		
 		byte [] broadcast= { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff };
 		byte [] targHWAdd={0,0,0,0,0,0};
 		
@@ -170,13 +484,6 @@ public class Router extends Device
 		arpRequestPacket.setTargetHardwareAddress(targHWAdd);
 		
 		//Target Protocol is IP of next Hop
-		int nextHopIP;
-		RouteEntry routeEntry = routeTable.lookup(ipv4Packet.getDestinationAddress());
-		if(routeEntry.getGatewayAddress()==0)
-			nextHopIP=ipv4Packet.getDestinationAddress();
-		else
-			nextHopIP=routeEntry.getGatewayAddress();
-
 		arpRequestPacket.setTargetProtocolAddress(nextHopIP);
 		
 		// Set the ARP Packet as the Ethernet packet payload 
@@ -186,6 +493,46 @@ public class Router extends Device
 	}
 	
 	
+	/**
+	 * Hashes the fields that identify the flow of an IPv4 packet: source and
+	 * destination address, protocol and, for TCP and UDP, source and
+	 * destination port. All packets of a flow have the same hash. Fragments
+	 * are hashed without ports, since only the first carries them, so all
+	 * fragments of a datagram take the same next hop.
+	 * @param ipv4Packet the IPv4 packet
+	 * @return hash of the packet's flow
+	 */
+	private static int flowHash(IPv4 ipv4Packet)
+	{
+		//Read the ports without decoding the transport header
+		int ports = ipv4Packet.isFragment() ? 0 : ipv4Packet.getTransportPorts();
+		return flowHash(ipv4Packet.getSourceAddress(), ipv4Packet.getDestinationAddress(),
+				ipv4Packet.getProtocol(), ports);
+	}
+	
+	/**
+	 * Hashes the fields that identify a flow.
+	 * @param sourceAddress source IP address
+	 * @param destinationAddress destination IP address
+	 * @param protocol IP protocol
+	 * @param ports source port in the high 16 bits and destination port in the
+	 *        low 16 bits, for TCP and UDP packets that are not fragments;
+	 *        otherwise 0
+	 * @return hash of the flow
+	 */
+	private static int flowHash(int sourceAddress, int destinationAddress, byte protocol, int ports)
+	{
+		int hash = sourceAddress;
+		hash = hash * 0x9E3779B9 + destinationAddress;
+		hash = hash * 0x9E3779B9 + protocol;
+		hash = hash * 0x9E3779B9 + ports;
+		
+		//Mix the high bits down, since next hops are chosen by the high bits
+		hash ^= hash >>> 16;
+		hash *= 0x85EBCA6B;
+		hash ^= hash >>> 13;
+		return hash;
+	}
 
 	/**
 	 * Generates ICMP Time Exceeded packet. Can be tweaked for other ICMP message types
@@ -213,7 +560,8 @@ public class Router extends Device
 		//Prepare data for ICMP payload
 		byte[] ipBytes = ipv4Packet.serialize();
 		int numIPBytes=ipv4Packet.getHeaderLength()*4 + 8;//IP header + 8 bytes following header
-		System.out.println("\n\n IP header length: "+numIPBytes+"\n\n");
+		if(Log.isEnabled(Log.Subsystem.ROUTER, Log.Level.DEBUG))
+			Log.log(Log.Subsystem.ROUTER, Log.Level.DEBUG, "IP header length: %d", numIPBytes);
 
 		byte[] icmpData = new byte[4 + numIPBytes];//4 bytes extra for padding
 		for(int i=0; i<numIPBytes; i++)
@@ -236,6 +584,58 @@ public class Router extends Device
 		return ether;
 	}
 
+	/**
+	 * Checks that an ARP packet maps IPv4 addresses to Ethernet addresses,
+	 * so its addresses have the expected lengths.
+	 * @param arpPacket the ARP packet
+	 * @return true if the packet can be handled
+	 */
+	private static boolean isValidArp(ARP arpPacket)
+	{
+		return arpPacket.getHardwareType() == ARP.HW_TYPE_ETHERNET
+				&& arpPacket.getProtocolType() == ARP.PROTO_TYPE_IP
+				&& arpPacket.getHardwareAddressLength() == Ethernet.DATALAYER_ADDRESS_LENGTH
+				&& arpPacket.getProtocolAddressLength() == 4
+				&& (arpPacket.getOpCode() == ARP.OP_REQUEST
+						|| arpPacket.getOpCode() == ARP.OP_REPLY);
+	}
+
+	/**
+	 * Checks whether the sender of an ARP packet may be put in the ARP cache:
+	 * probes without a sender address, group MAC addresses and our own IP
+	 * addresses are never learned.
+	 * @param senderIp the sender protocol address
+	 * @param senderMac the sender hardware address
+	 * @return true if the mapping may be learned
+	 */
+	private boolean isLearnableArpSender(int senderIp, byte[] senderMac)
+	{
+		if(senderIp == 0 || (senderMac[0] & 0x01) != 0)
+			return false;
+		for(Iface iface : interfaces.values())
+		{
+			if(iface.getIpAddress() == senderIp)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Sends ICMP Destination Host Unreachable for a packet whose next hop
+	 * could not be resolved.
+	 * @param etherPacket the packet that could not be forwarded
+	 * @param inIface the interface the packet arrived on
+	 * @param srcMacAddress the original source MAC address of the packet, previous hop
+	 */
+	void sendHostUnreachable(Ethernet etherPacket, Iface inIface, byte[] srcMacAddress)
+	{
+		Ethernet etherICMP= genICMPTimeExceeded(etherPacket, inIface, srcMacAddress);
+		ICMP icmp=(ICMP) etherICMP.getPayload().getPayload();
+		icmp.setIcmpType((byte)3);
+		icmp.setIcmpCode((byte)1);
+		sendPacket(etherICMP, inIface);
+	}
+
 
 	/**
 	 * Handle an Ethernet packet received on a specific interface.
@@ -244,8 +644,11 @@ public class Router extends Device
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-		System.out.println("*** -> Router Received packet: " +
-				etherPacket.toString().replace("\n", "\n\t"));
+		//Decide once whether to trace this packet; formatting only happens if it is traced
+		boolean trace = Log.sample(Log.Subsystem.ROUTER);
+		if(trace)
+			Log.log(Log.Subsystem.ROUTER, Log.Level.DEBUG, "*** -> Router Received packet: %s",
+					etherPacket.toString().replace("\n", "\n\t"));
 
 		/********************************************************************/
 		/* TODO: Handle packets                                             */
@@ -255,57 +658,59 @@ public class Router extends Device
 		
 		if(etherPacket.getEtherType() == Ethernet.TYPE_ARP){
 
-		    System.out.println("\nHandling the arp packet");
+			Log.log(Log.Subsystem.ARP, Log.Level.DEBUG, "Handling the arp packet");
 			//handle the ARP Packet
 			
 			ARP arpPacket = (ARP)etherPacket.getPayload();
+			if(!isValidArp(arpPacket))
+				return;
 			int targetIp = ByteBuffer.wrap(arpPacket.getTargetProtocolAddress()).getInt();
 			
 			int senderIp = ByteBuffer.wrap(arpPacket.getSenderProtocolAddress()).getInt();
+			long senderMac = MACAddress.valueOf(arpPacket.getSenderHardwareAddress()).toLong();
+			boolean learnable = isLearnableArpSender(senderIp, arpPacket.getSenderHardwareAddress());
 			
 			//check if the target IP is the inIface IP
 			if(targetIp != inIface.getIpAddress()){
-				//The ARP packet was not intended for us
-				System.out.println("\nARP packet not for our inIface: "+inIface.toString());
+				//The ARP packet was not intended for us, but refreshes a mapping we already have (RFC 826)
+				if(learnable && arpCache.contains(senderIp) && !arpCache.confirm(senderIp, senderMac))
+					arpCache.insert(MACAddress.valueOf(senderMac), senderIp);
+				Log.log(Log.Subsystem.ARP, Log.Level.DEBUG, "ARP packet not for our inIface: %s", inIface);
 				return ;
 			}
+
+			//The sender is evidently up, so stop holding it down
+			negativeArpCache.remove(senderIp);
 			
 			
 			//ARP request received, need to send ARP reply
 			if(arpPacket.getOpCode() == ARP.OP_REQUEST){
-				System.out.println("\nGot Arp Request");	
+				Log.log(Log.Subsystem.ARP, Log.Level.DEBUG, "Got Arp Request");
 				
 				//Construct the ARP Reply
 				Ethernet ether = genArpReply(etherPacket, inIface);
 				// Send the reply through the interface through which we received the request
 				sendPacket(ether, inIface);	
 			}
-			//ARP reply received
-			//Need to update ARP cache and insert ARPreply enqueued packets on their way
-			else{
-				System.out.println("\nGot Arp Reply");
+			else
+				Log.log(Log.Subsystem.ARP, Log.Level.DEBUG, "Got Arp Reply");
 
-				//Consider only if ARP cache value for this IP is missing
-				if(arpCache.lookup(senderIp)==null)
-				{
-					//Check if the requester is still active
-					ARPRequester requester= activeThreads.get(senderIp);
-					if(requester==null)
-						return;
-						
-					//If requester is still waiting for replies from targetIp
-					//Then the reply made it in time, forward the queued packets to their destination 
-					if(!requester.isDone())
-					{
-						//Stop the ARP requester and give it the ARP reply
-						requester.setReply(etherPacket, inIface);
-						//update ARP cache for future packets for this IP address
-						arpCache.insert(new MACAddress(arpPacket.getSenderHardwareAddress()), senderIp);
-					}
-					//else the Requester has timed out before reply came, it will send ICMP Dest Host unreachable for all queued packets
-					//clear up requester for this IP
-					activeThreads.remove(senderIp);
-				}
+			if(!learnable)
+				return;
+
+			//Learn the sender from requests and replies alike (RFC 826), so packets back to it need no resolution;
+			//update ARP cache first, so new packets for this IP address are forwarded directly
+			//an unchanged reachable entry only has its time updated, so repeated ARP traffic does not reschedule it
+			if(!arpCache.confirm(senderIp, senderMac))
+				arpCache.insert(MACAddress.valueOf(senderMac), senderIp);
+
+			//Forward the packets waiting for this IP address right away
+			//If the requester has already timed out, it has sent ICMP Dest Host unreachable for them
+			ARPRequester requester= pendingPackets.get(senderIp);
+			if(requester != null)
+			{
+				pendingPackets.remove(requester);
+				requester.setReply(arpPacket.getSenderHardwareAddress(), inIface);
 			}
 			return;
 		}
@@ -326,25 +731,7 @@ public class Router extends Device
 			return;
 		}
 
-		//calculate the checksum
-		short originalChecksum = ipv4Packet.getChecksum();
-
-		//set checksum to 0
-		ipv4Packet.setChecksum((short)0x0000);
-
-		//serialize will compute the check sum again
-		byte[] ipv4Bytes = ipv4Packet.serialize();
-
-		//compare the original checksum with 10th and 11byte
-		byte b1,b2;
-
-		b1 = (byte)((originalChecksum >> 8) & 0xff);
-		b2 = (byte)(originalChecksum & 0xff);
-
-		if(!(b1 == ipv4Bytes[10] && b2 == ipv4Bytes[11])){
-			//check sum mismatch
-			return;
-		}
+		//the header and its checksum were verified in the received bytes, by acceptFrame
 
 		//Check if the packet's destination IP was for one of the router's interfaces
 		Iterator<Iface> ifaceIt = interfaces.values().iterator();
@@ -388,7 +775,8 @@ public class Router extends Device
 		//ICMP Dest Net unreachable
 		if(routeEntry == null)
 		{
-			System.out.println("\nThe look up has failed");
+			if(trace)
+				Log.log(Log.Subsystem.ROUTER, Log.Level.DEBUG, "The look up has failed");
 			Ethernet ether=null;
 			if( (ether=genICMPTimeExceeded(etherPacket, inIface, originalSrcMAC)) != null )
 			{
@@ -400,90 +788,85 @@ public class Router extends Device
 			return;
 		}
 
-		System.out.println("\nDestination address = "+IPv4.fromIPv4Address(routeEntry.getDestinationAddress()));
-		System.out.println("\nMask Address = "+IPv4.fromIPv4Address(routeEntry.getMaskAddress()));
-		System.out.println("\nLooking to forward the packet");
+		//Pick one of the equal-cost next hops; packets of a flow stay on one path
+		NextHop nextHop = routeEntry.selectNextHop(flowHash(ipv4Packet));
+		Iface outIface = nextHop.getInterface();
+
+		if(trace)
+			Log.log(Log.Subsystem.ROUTER, Log.Level.DEBUG, "Looking to forward the packet: destination address = %s, mask address = %s",
+					IPv4.fromIPv4Address(routeEntry.getDestinationAddress()),
+					IPv4.fromIPv4Address(routeEntry.getMaskAddress()));
 
 		
 		//form the corresponding IP packet
 
-		//change the ttl and checksum
-		ipv4Packet.setTtl((byte)(ipv4Packet.getTtl()-1));
-
-		//calculate the new checksum
-		ipv4Packet.setChecksum((short)(0x0000));
-		ipv4Bytes = ipv4Packet.serialize();
-
-		short s1 = (short)((ipv4Bytes[10] << 8) & 0xff00);
-		short s2 = (short)(ipv4Bytes[11] & 0x00ff);
-
-		ipv4Packet.setChecksum((short)(s1+s2));
+		//change the ttl and update the checksum incrementally (RFC 1624), whatever the payload size
+		ipv4Packet.decrementTtl();
 
 		etherPacket.setPayload(ipv4Packet);
 		
 		//Set Source MAC Adress
-		etherPacket.setSourceMACAddress(routeEntry.getInterface().getMacAddress().toBytes());
+		etherPacket.setSourceMACAddress(outIface.getMacAddress().toBytes());
 		
 
 		//Find the corresponding destination MAC (next hop) for this IP address by an ARP lookup
-		ArpEntry arpEntry = null;
+		long nextHopMAC;
 		
 		//Next hop IP address
 		int nextHopIP;
-		if(routeEntry.getGatewayAddress() == 0)
+		if(nextHop.getGatewayAddress() == 0)
 		{
-			arpEntry = arpCache.lookup(ipv4Packet.getDestinationAddress());
+			nextHopMAC = arpCache.lookupMac(ipv4Packet.getDestinationAddress());
 			nextHopIP=ipv4Packet.getDestinationAddress();
 		}
 		else
 		{
-			arpEntry = arpCache.lookup(routeEntry.getGatewayAddress());
-			nextHopIP=routeEntry.getGatewayAddress();
+			nextHopMAC = arpCache.lookupMac(nextHop.getGatewayAddress());
+			nextHopIP=nextHop.getGatewayAddress();
 		}
 
 		//Now generate ARP request for the IP address and queue any packets for any IP address being currently resolved
-		if(arpEntry==null)
+		while(nextHopMAC==ArpCache.NO_MAC)
 		{
-			//check if requester exists and has not timed out(is not done)
-			if(activeThreads.containsKey(nextHopIP) 
-					&& !activeThreads.get(nextHopIP).isDone())
+			//add to the queue of the requester already resolving this IP address
+			ARPRequester requester = pendingPackets.get(nextHopIP);
+			if(requester != null)
 			{
-				//add to requestor's queue of waiting packets
-				activeThreads.get(nextHopIP).add(etherPacket, inIface, originalSrcMAC);
-
+				//Queued or dropped within the limits on waiting packets
+				if(requester.add(etherPacket, inIface, originalSrcMAC) != ARPRequester.DONE)
+					return;
+
+				//The requester finished in the meantime; it may have resolved the IP address
+				pendingPackets.remove(requester);
+				nextHopMAC = arpCache.lookupMac(nextHopIP);
+				continue;
 			}
-			//if not then spawn a new thread to generate ARP requests for this IP address
-			else
+
+			//The IP address failed to resolve recently; answer right away instead of sending more ARP requests
+			if(negativeArpCache.contains(nextHopIP))
 			{
-				//Generate the ARP request packet for the new requester thread
-				Ethernet etherARPReq = genArpRequest(etherPacket, routeEntry.getInterface());//inIface);
-				
-				//New ARP requester object
-				ARPRequester r = new ARPRequester(etherARPReq, routeEntry.getInterface(), this);
-				//Add packet, inIface and srcMAC to waiting queues
-				r.add(etherPacket, inIface, originalSrcMAC);
-				//Put new requester object in global map of active requesters for IP addresses
-				//If an older object existed, it has timed out and is replaced by the new one
-				activeThreads.put(nextHopIP, r);
-				
-				//Start a thread for ARP request generation and move on.
-				Thread t= new Thread(r);
-				t.start();
+				if(negativeArpCache.allowUnreachable())
+					sendHostUnreachable(etherPacket, inIface, originalSrcMAC);
+				return;
 			}
-			return;
-		}
 
-		MACAddress nextHopMAC = arpEntry.getMac();
+			//if not then start resolving this IP address
+			requester = new ARPRequester(nextHopIP, outIface, this, pendingPackets);
 
-		if( nextHopMAC == null){
-			return;
+			//Another packet may have started resolving it at the same time; only one requester builds and sends requests
+			if(pendingPackets.putIfAbsent(requester) == null)
+			{
+				//Send the first request even if the packet itself is dropped; retransmissions run on the shared scheduler
+				requester.add(etherPacket, inIface, originalSrcMAC);
+				requester.start(arpScheduler);
+				return;
+			}
 		}
-		else{
-			
-			etherPacket.setDestinationMACAddress(nextHopMAC.toBytes());
 
-			sendPacket(etherPacket, routeEntry.getInterface());
-		}
+		etherPacket.setDestinationMACAddress(MACAddress.valueOf(nextHopMAC).toBytes());
+
+		nextHop.countPacket(ipv4Packet.getTotalLength() & 0xffff);
+		sendPacket(etherPacket, outIface);
 		/********************************************************************/
 	}
 
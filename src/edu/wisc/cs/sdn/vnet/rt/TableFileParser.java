@@ -0,0 +1,294 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Parser for line-oriented table files, such as static route tables and ARP
+ * caches. The file is memory-mapped and split into chunks at line
+ * boundaries; chunks are tokenized in parallel without regular expressions
+ * or intermediate strings.
+ * @param <T> type of the entry parsed from each line
+ */
+abstract class TableFileParser<T>
+{
+	/** Smallest chunk worth handing to a separate thread, in bytes */
+	private static final int MIN_CHUNK_SIZE = 1 << 20;
+
+	/**
+	 * Thrown when a line of the file cannot be parsed.
+	 */
+	static class ParseException extends Exception
+	{
+		private static final long serialVersionUID = 1L;
+
+		ParseException(String message)
+		{ super(message); }
+	}
+
+	/**
+	 * Reads tokens from a single line of the file.
+	 */
+	static class Cursor
+	{
+		private final ByteBuffer buf;
+		private int pos;
+		private int end;
+
+		private Cursor(ByteBuffer buf)
+		{ this.buf = buf; }
+
+		/**
+		 * @return true if only whitespace remains on the line
+		 */
+		boolean atEnd()
+		{
+			this.skipSpace();
+			return this.pos >= this.end;
+		}
+
+		/**
+		 * @return the line as a string, for error messages
+		 */
+		String line(int start)
+		{ return this.text(start, this.end); }
+
+		/**
+		 * Read a dotted-quad IP address.
+		 * @return the address
+		 */
+		int nextIp() throws ParseException
+		{
+			this.skipSpace();
+			int ip = 0;
+			for (int octet = 0; octet < 4; octet++)
+			{
+				if (octet > 0)
+				{ this.expect('.'); }
+				int value = 0;
+				int digits = 0;
+				while (this.pos < this.end && digits < 3)
+				{
+					int c = this.buf.get(this.pos) - '0';
+					if (c < 0 || c > 9)
+					{ break; }
+					value = 10 * value + c;
+					digits++;
+					this.pos++;
+				}
+				if (0 == digits || value > 255)
+				{ throw new ParseException("invalid IP address"); }
+				ip = (ip << 8) | value;
+			}
+			return ip;
+		}
+
+		/**
+		 * Read a MAC address written as six colon-separated hex bytes.
+		 * @return the address in the low 48 bits
+		 */
+		long nextMac() throws ParseException
+		{
+			this.skipSpace();
+			long mac = 0;
+			for (int octet = 0; octet < 6; octet++)
+			{
+				if (octet > 0)
+				{ this.expect(':'); }
+				for (int digit = 0; digit < 2; digit++)
+				{
+					int c = (this.pos < this.end) ? this.buf.get(this.pos) : -1;
+					int value = Character.digit(c, 16);
+					if (value < 0)
+					{ throw new ParseException("invalid MAC address"); }
+					mac = (mac << 4) | value;
+					this.pos++;
+				}
+			}
+			return mac;
+		}
+
+		/**
+		 * Read a word of letters and digits.
+		 * @return the word
+		 */
+		String nextWord() throws ParseException
+		{
+			this.skipSpace();
+			int start = this.pos;
+			while (this.pos < this.end
+					&& Character.isLetterOrDigit(this.buf.get(this.pos)))
+			{ this.pos++; }
+			if (start == this.pos)
+			{ throw new ParseException("missing name"); }
+			return this.text(start, this.pos);
+		}
+
+		private String text(int from, int to)
+		{
+			byte[] bytes = new byte[to - from];
+			for (int i = 0; i < bytes.length; i++)
+			{ bytes[i] = this.buf.get(from + i); }
+			return new String(bytes);
+		}
+
+		private void expect(char c) throws ParseException
+		{
+			if (this.pos >= this.end || this.buf.get(this.pos) != c)
+			{ throw new ParseException("expected '" + c + "'"); }
+			this.pos++;
+		}
+
+		private void skipSpace()
+		{
+			while (this.pos < this.end && this.buf.get(this.pos) <= ' ')
+			{ this.pos++; }
+		}
+	}
+
+	/**
+	 * Parse the tokens of one line into an entry.
+	 * @param cursor positioned at the start of a non-empty line
+	 * @return the entry
+	 */
+	protected abstract T parseLine(Cursor cursor) throws ParseException;
+
+	/**
+	 * Parse all lines of a file.
+	 * @param filename name of the file
+	 * @param what description of the table, for messages
+	 * @return entries in the order they appear in the file, null if the file
+	 *         could not be read or contains an invalid line
+	 */
+	List<T> parse(String filename, String what)
+	{
+		long start = System.nanoTime();
+		MappedByteBuffer buf;
+		try
+		{
+			RandomAccessFile file = new RandomAccessFile(filename, "r");
+			try
+			{
+				FileChannel channel = file.getChannel();
+				buf = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+						channel.size());
+			}
+			finally
+			{ file.close(); }
+		}
+		catch (IOException e)
+		{
+			System.err.println(e.toString());
+			return null;
+		}
+
+		// Split the file into chunks that end at line boundaries
+		int size = buf.limit();
+		int threads = Math.max(1, Math.min(
+				Runtime.getRuntime().availableProcessors(),
+				size / MIN_CHUNK_SIZE));
+		List<Integer> bounds = new ArrayList<Integer>();
+		bounds.add(0);
+		for (int i = 1; i < threads; i++)
+		{
+			int bound = (int)((long)size * i / threads);
+			while (bound < size && buf.get(bound - 1) != '\n')
+			{ bound++; }
+			if (bound > bounds.get(bounds.size() - 1))
+			{ bounds.add(bound); }
+		}
+		bounds.add(size);
+
+		// Parse chunks in parallel
+		List<List<T>> results = new ArrayList<List<T>>();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try
+		{
+			List<Future<List<T>>> futures = new ArrayList<Future<List<T>>>();
+			for (int i = 0; i + 1 < bounds.size(); i++)
+			{
+				final ByteBuffer chunk = buf.duplicate();
+				final int chunkStart = bounds.get(i);
+				final int chunkEnd = bounds.get(i + 1);
+				futures.add(executor.submit(new Callable<List<T>>()
+				{
+					public List<T> call() throws ParseException
+					{ return parseChunk(chunk, chunkStart, chunkEnd); }
+				}));
+			}
+			for (Future<List<T>> future : futures)
+			{ results.add(future.get()); }
+		}
+		catch (ExecutionException e)
+		{
+			System.err.println("Invalid entry in " + what + " file: "
+					+ e.getCause().getMessage());
+			return null;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		finally
+		{ executor.shutdownNow(); }
+
+		List<T> entries = new ArrayList<T>();
+		for (List<T> result : results)
+		{ entries.addAll(result); }
+
+		long elapsed = Math.max(System.nanoTime() - start, 1);
+		System.out.println(String.format(
+				"Parsed %d %s entries in %d ms (%d entries/sec, %d threads)",
+				entries.size(), what, elapsed / 1000000,
+				entries.size() * 1000000000L / elapsed, bounds.size() - 1));
+		return entries;
+	}
+
+	/**
+	 * Parse the lines in one chunk of the file.
+	 */
+	private List<T> parseChunk(ByteBuffer buf, int start, int end)
+			throws ParseException
+	{
+		List<T> entries = new ArrayList<T>();
+		Cursor cursor = new Cursor(buf);
+		int lineStart = start;
+		while (lineStart < end)
+		{
+			int lineEnd = lineStart;
+			while (lineEnd < end && buf.get(lineEnd) != '\n')
+			{ lineEnd++; }
+
+			cursor.pos = lineStart;
+			cursor.end = lineEnd;
+			if (!cursor.atEnd())
+			{
+				cursor.pos = lineStart;
+				try
+				{
+					entries.add(this.parseLine(cursor));
+					if (!cursor.atEnd())
+					{ throw new ParseException("unexpected trailing text"); }
+				}
+				catch (ParseException e)
+				{
+					throw new ParseException(e.getMessage() + ": "
+							+ cursor.line(lineStart).trim());
+				}
+			}
+			lineStart = lineEnd + 1;
+		}
+		return entries;
+	}
+}
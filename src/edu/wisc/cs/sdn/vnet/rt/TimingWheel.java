@@ -0,0 +1,161 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+/**
+ * Hashed timing wheel that runs tasks after a delay. Time advances in
+ * ticks; a task is put in the bucket for the tick it is due, modulo the
+ * number of buckets, and each tick only looks at its own bucket. The cost of
+ * a tick depends on the number of tasks in one bucket, not on the number of
+ * tasks scheduled.
+ * <p>
+ * Scheduled tasks cannot be cancelled. Tasks that may become obsolete should
+ * check on running whether they still apply and do nothing otherwise.
+ * <p>
+ * Tasks run on the wheel's own daemon thread, which is started when the
+ * first task is scheduled. Tasks must be short; they delay later ticks.
+ */
+class TimingWheel
+{
+	/** A scheduled task */
+	private static final class Timer
+	{
+		private final Runnable task;
+
+		/** Tick at which the task is due */
+		private final long deadline;
+
+		/** Next timer in the same bucket */
+		private Timer next;
+
+		private Timer(Runnable task, long deadline, Timer next)
+		{
+			this.task = task;
+			this.deadline = deadline;
+			this.next = next;
+		}
+	}
+
+	/** Length of a tick, in milliseconds */
+	private final long tickMillis;
+
+	/** Timers in each bucket, as linked lists; guarded by this */
+	private final Timer[] buckets;
+
+	/** Time (from System.nanoTime) at which the wheel started */
+	private long startNanos;
+
+	/** Number of ticks processed so far; guarded by this */
+	private long tick;
+
+	/** Thread that processes ticks; started when a task is scheduled */
+	private Thread thread;
+
+	private volatile boolean stopped;
+
+	/**
+	 * Create a timing wheel.
+	 * @param name name of the wheel's thread
+	 * @param tickMillis length of a tick, in milliseconds
+	 * @param numBuckets number of buckets, rounded up to a power of two
+	 */
+	TimingWheel(String name, long tickMillis, int numBuckets)
+	{
+		this.tickMillis = tickMillis;
+		int size = Integer.highestOneBit(Math.max(1, numBuckets - 1)) << 1;
+		this.buckets = new Timer[size];
+		this.stopped = false;
+		this.thread = new Thread(name)
+		{
+			public void run()
+			{ TimingWheel.this.run(); }
+		};
+		this.thread.setDaemon(true);
+	}
+
+	/**
+	 * Run a task after a delay. The delay is rounded up to a whole number of
+	 * ticks.
+	 * @param delayMillis delay, in milliseconds
+	 * @param task the task
+	 */
+	synchronized void schedule(long delayMillis, Runnable task)
+	{
+		if (this.stopped)
+		{ return; }
+		if (Thread.State.NEW == this.thread.getState())
+		{
+			this.startNanos = System.nanoTime();
+			this.thread.start();
+		}
+
+		// Due at the first tick that begins after the delay has passed
+		long now = (System.nanoTime() - this.startNanos) / 1000000;
+		long deadline = Math.max(this.tick,
+				(now + delayMillis + this.tickMillis - 1) / this.tickMillis);
+		int bucket = (int)(deadline & (this.buckets.length - 1));
+		this.buckets[bucket] = new Timer(task, deadline, this.buckets[bucket]);
+	}
+
+	/**
+	 * Stop processing ticks; pending tasks never run.
+	 */
+	void stop()
+	{
+		this.stopped = true;
+		this.thread.interrupt();
+	}
+
+	/**
+	 * Process ticks as they pass until the wheel is stopped.
+	 */
+	private void run()
+	{
+		while (!this.stopped)
+		{
+			// Wait for the current tick to begin
+			long wait;
+			synchronized(this)
+			{
+				wait = this.startNanos / 1000000
+						+ this.tick * this.tickMillis
+						- System.nanoTime() / 1000000;
+			}
+			if (wait > 0)
+			{
+				try
+				{ Thread.sleep(wait); }
+				catch (InterruptedException e)
+				{ continue; }
+			}
+
+			// Take the due timers out of the current tick's bucket
+			Timer due = null;
+			synchronized(this)
+			{
+				int bucket = (int)(this.tick & (this.buckets.length - 1));
+				Timer prev = null;
+				Timer timer = this.buckets[bucket];
+				while (timer != null)
+				{
+					Timer next = timer.next;
+					if (timer.deadline <= this.tick)
+					{
+						if (null == prev)
+						{ this.buckets[bucket] = next; }
+						else
+						{ prev.next = next; }
+						timer.next = due;
+						due = timer;
+					}
+					else
+					{ prev = timer; }
+					timer = next;
+				}
+				this.tick++;
+			}
+
+			// Run them without holding the lock, so they can schedule more
+			for (; due != null; due = due.next)
+			{ due.task.run(); }
+		}
+	}
+}
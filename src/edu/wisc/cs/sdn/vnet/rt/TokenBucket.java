@@ -0,0 +1,57 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+/**
+ * Token bucket that limits how often something happens. Tokens are added at
+ * a fixed rate, up to one second's worth; each event takes one.
+ */
+class TokenBucket
+{
+	/** Tokens added per second, and the most the bucket holds */
+	private volatile int rate;
+
+	/** Tokens available, and when they were last topped up; guarded by
+	 *  this */
+	private double tokens;
+	private long time;
+
+	/**
+	 * Create a full bucket.
+	 * @param rate tokens added per second
+	 */
+	TokenBucket(int rate)
+	{
+		this.rate = rate;
+		this.tokens = rate;
+		this.time = System.currentTimeMillis();
+	}
+
+	/**
+	 * Change the rate; the tokens available are kept, up to the new rate.
+	 * @param rate tokens added per second
+	 */
+	void setRate(int rate)
+	{ this.rate = rate; }
+
+	/**
+	 * Take a token if one is available.
+	 * @return 0 if a token was taken; otherwise the time (in milliseconds)
+	 *         until one is available, or -1 if the rate is 0
+	 */
+	synchronized long take()
+	{
+		// Top up the tokens, up to one second's worth
+		long now = System.currentTimeMillis();
+		int rate = this.rate;
+		this.tokens = Math.min(rate,
+				this.tokens + (now - this.time) * rate / 1000.0);
+		this.time = now;
+		if (this.tokens >= 1)
+		{
+			this.tokens--;
+			return 0;
+		}
+		if (rate <= 0)
+		{ return -1; }
+		return Math.max(1, (long)Math.ceil((1 - this.tokens) * 1000 / rate));
+	}
+}
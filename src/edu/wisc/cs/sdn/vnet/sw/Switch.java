@@ -1,7 +1,12 @@
 package edu.wisc.cs.sdn.vnet.sw;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -10,6 +15,7 @@ import net.floodlightcontroller.packet.MACAddress;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
 
 /**
  * @author Aaron Gember-Jacobson
@@ -72,6 +78,68 @@ public class Switch extends Device implements Runnable
 	flushThread.start();
     }
 
+    /**
+     * Write the forwarding table to a checkpoint: each entry's MAC address,
+     * interface name and age.
+     * @param out the body of the checkpoint
+     */
+    protected void saveState(DataOutputStream out) throws IOException
+    {
+	long now = System.nanoTime();
+
+	//copy the entries first, so the count matches what is written
+	List<MACAddress> macs = new ArrayList<MACAddress>();
+	List<Iface> ifaces = new ArrayList<Iface>();
+	List<Long> times = new ArrayList<Long>();
+	for(Map.Entry<MACAddress, Long> entry : ftableTime.entrySet()){
+	    Iface iface = forwardingTable.get(entry.getKey());
+	    if(iface != null){
+		macs.add(entry.getKey());
+		ifaces.add(iface);
+		times.add(entry.getValue());
+	    }
+	}
+
+	out.writeInt(macs.size());
+	for(int i = 0; i < macs.size(); i++){
+	    long mac = macs.get(i).toLong();
+	    out.writeShort((int)(mac >>> 32));
+	    out.writeInt((int)mac);
+	    out.writeUTF(ifaces.get(i).getName());
+	    out.writeInt((int)Math.max(0, (now - times.get(i)) / 1000000));
+	}
+    }
+
+    /**
+     * Restore forwarding table entries from a checkpoint. Entries age by the
+     * time since the checkpoint was written; entries that would have timed
+     * out, or whose interface no longer exists, are skipped.
+     * @param in the body of the checkpoint
+     * @param downtime time (in milliseconds) since the checkpoint was written
+     */
+    protected void restoreState(DataInputStream in, long downtime)
+	throws IOException
+    {
+	long now = System.nanoTime();
+	int restored = 0;
+	int count = in.readInt();
+	for(int i = 0; i < count; i++){
+	    long mac = ((in.readShort() & 0xFFFFL) << 32) | (in.readInt() & 0xFFFFFFFFL);
+	    Iface iface = getInterface(in.readUTF());
+	    long age = (in.readInt() + downtime) * 1000000;
+	    if(iface == null || age > TIMEOUT)
+		continue;
+
+	    MACAddress smac = MACAddress.valueOf(mac);
+	    forwardingTable.put(smac, iface);
+	    ftableTime.put(smac, now - age);
+	    restored++;
+	}
+	System.out.println(String.format(
+		"Restored %d forwarding table entries, aged by %d ms",
+		restored, downtime));
+    }
+
     /**
      * Handle an Ethernet packet received on a specific interface.
      * @param etherPacket the Ethernet packet that was received
@@ -80,6 +148,9 @@ public class Switch extends Device implements Runnable
     public void handlePacket(Ethernet etherPacket, Iface inIface)
     {
 	currTime = System.nanoTime();
+
+	//decide once whether to trace this packet; formatting only happens if it is traced
+	boolean trace = Log.sample(Log.Subsystem.SWITCH);
 	
 	//System.out.println("*** -> Received packet: " +
 	//		   etherPacket.toString().replace("\n", "\n\t"));
@@ -98,7 +169,8 @@ public class Switch extends Device implements Runnable
 	if(outIface == null){
 	    
 	    //broadcast
-	    System.out.println("Broadcast\n");
+	    if(trace)
+		Log.log(Log.Subsystem.SWITCH, Log.Level.DEBUG, "Broadcast from %s", smac);
 	    iFaces = interfaces.values();
 	    
 	    it = iFaces.iterator();
@@ -117,7 +189,9 @@ public class Switch extends Device implements Runnable
 	else{
 	    //forward to that particular interface
 	    sendPacket(etherPacket, outIface);
-	    System.out.println("Sent to iface: "+ outIface.toString()+" at "+System.currentTimeMillis()+"\n");
+	    if(trace)
+		Log.log(Log.Subsystem.SWITCH, Log.Level.DEBUG, "Sent to iface: %s at %d",
+			outIface, System.currentTimeMillis());
 	}
 	
 	//Learn the interface
@@ -9,9 +9,19 @@ public class CommandPacket extends Command
 	protected String mInterfaceName;
 	protected Ethernet etherPacket;
 	
+	/** The received frame: the command's buffer, and where the frame starts
+	 *  in it and how long it is */
+	protected byte[] frame;
+	protected int frameOffset;
+	protected int frameLength;
+	
 	public CommandPacket()
 	{ super(Command.VNS_PACKET); }
 	
+	/**
+	 * Read the command, leaving the frame unparsed in the buffer; call
+	 * {@link #parseFrame} to parse it.
+	 */
 	protected CommandPacket deserialize(ByteBuffer buf)
 	{
 		super.deserialize(buf);
@@ -20,16 +30,56 @@ public class CommandPacket extends Command
 		buf.get(tmpBytes);
 		this.mInterfaceName = new String(tmpBytes).trim();
 		
-        this.etherPacket = new Ethernet();
-		this.etherPacket.deserialize(buf.array(), buf.position(),
-				buf.capacity() - buf.position());
+		this.frame = buf.array();
+		this.frameOffset = buf.position();
+		this.frameLength = buf.capacity() - buf.position();
 		
 		return this;
 	}
 	
+	/**
+	 * Parse the received frame.
+	 * @return the frame as an Ethernet packet
+	 */
+	protected Ethernet parseFrame()
+	{
+        this.etherPacket = new Ethernet();
+		this.etherPacket.deserialize(this.frame, this.frameOffset,
+				this.frameLength);
+		return this.etherPacket;
+	}
+	
 	protected int getSize()
 	{ return super.getSize() + 16; }
 	
+	/**
+	 * Write the command, except the frame, in the bytes just before a frame
+	 * that is already in bytes, so the command can be sent without copying
+	 * the frame.
+	 * @param buf the bytes holding the frame
+	 * @param frameOffset where the frame starts
+	 * @param frameLength length of the frame
+	 * @return where the command starts, or -1 if there is no room for it
+	 *         before the frame
+	 */
+	protected int serializeBefore(byte[] buf, int frameOffset, int frameLength)
+	{
+		int start = frameOffset - this.getSize();
+		if (start < 0)
+		{ return -1; }
+		this.mLen = this.getSize() + frameLength;
+		
+		ByteBuffer bb = ByteBuffer.wrap(buf, start, this.getSize());
+		bb.putInt(this.mLen);
+		bb.putInt(this.mType);
+		byte[] tmp = new byte[16];
+		System.arraycopy(this.mInterfaceName.getBytes(), 0, tmp, 0, 
+				this.mInterfaceName.length());
+		bb.put(tmp);
+		
+		return start;
+	}
+	
 	protected byte[] serialize()
 	{
 		byte[] packet = this.etherPacket.serialize();
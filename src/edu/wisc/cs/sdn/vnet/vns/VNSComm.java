@@ -16,6 +16,9 @@ import edu.wisc.cs.sdn.vnet.Iface;
 
 public class VNSComm 
 {
+	/** Length of an Ethernet header without a VLAN tag */
+	private static final int ETHERNET_HEADER_LENGTH = 14;
+	
 	private Socket socket;
 	private Device device;
 	
@@ -193,13 +196,27 @@ public class VNSComm
 			CommandPacket cmdPkt = new CommandPacket();
 			cmdPkt.deserialize(buf);
 			
-			// Log packet
+			// Log packet, as received
             if (this.device.getLogFile() != null)
-            { this.device.getLogFile().dump(cmdPkt.etherPacket); }
+            { 
+            	this.device.getLogFile().dump(cmdPkt.frame, 
+            			cmdPkt.frameOffset, cmdPkt.frameLength); 
+            }
+			
+			// Drop frames the device rejects before parsing them
+			if (cmdPkt.frameLength < ETHERNET_HEADER_LENGTH
+					|| !this.device.acceptFrame(cmdPkt.frame, 
+							cmdPkt.frameOffset, cmdPkt.frameLength))
+			{ break; }
+			
+			// Let the device handle the frame in its bytes if it can
+			Iface inIface = this.device.getInterface(cmdPkt.mInterfaceName);
+			if (this.device.handleFrame(cmdPkt.frame, cmdPkt.frameOffset, 
+					cmdPkt.frameLength, inIface))
+			{ break; }
 			
 			// Pass to device, student's code should take over here
-			this.device.handlePacket(cmdPkt.etherPacket, 
-					this.device.getInterface(cmdPkt.mInterfaceName));
+			this.device.handlePacket(cmdPkt.parseFrame(), inIface);
 			break;
 			
 		case Command.VNS_CLOSE:
@@ -241,6 +258,43 @@ public class VNSComm
 		return true;
 	}
 	
+	// Send a frame that is already in bytes, writing the command header
+	// in place before it when there is room, as there is in a received
+	// command's buffer
+	public boolean sendFrame(byte[] frame, int offset, int length, 
+			String ifaceName)
+	{
+		CommandPacket cmdPacket = new CommandPacket();
+		cmdPacket.mInterfaceName = ifaceName;
+		
+		int start = cmdPacket.serializeBefore(frame, offset, length);
+		if (start < 0)
+		{
+			byte[] copy = new byte[cmdPacket.getSize() + length];
+			System.arraycopy(frame, offset, copy, cmdPacket.getSize(), length);
+			frame = copy;
+			offset = cmdPacket.getSize();
+			start = cmdPacket.serializeBefore(frame, offset, length);
+		}
+		
+		// Log packet
+        if (this.device.getLogFile() != null)
+        { this.device.getLogFile().dump(frame, offset, length); }
+		
+	    try
+		{
+			OutputStream outStream = socket.getOutputStream();
+			outStream.write(frame, start, cmdPacket.mLen);
+            outStream.flush();
+		}
+		catch(IOException e)
+		{
+			System.err.println("Error writing packet");
+			return false;
+		}
+		return true;
+	}
+	
 	// sr_send_packet
 	public boolean sendPacket(Ethernet etherPacket, String ifaceName)
 	{
@@ -17,6 +17,8 @@
 
 package net.floodlightcontroller.packet;
 
+import java.nio.ByteBuffer;
+
 
 /**
 *
@@ -44,13 +46,30 @@ public abstract class BasePacket implements IPacket {
     }
 
     /**
-     * @return the payload
+     * @return the payload, decoded now if it has not been yet
      */
     @Override
     public IPacket getPayload() {
+        if (payload instanceof EncodedPayload)
+            payload = ((EncodedPayload) payload).decode(this);
         return payload;
     }
 
+    /**
+     * Keeps the bytes of a received payload, to be decoded only when
+     * {@link #getPayload()} is first called. Until then, serializing the
+     * packet reuses the bytes as received.
+     * @param clazz class to decode the payload with; null for {@link Data}
+     * @param data the bytes holding the payload
+     * @param offset where the payload starts
+     * @param length length of the payload
+     */
+    protected void setEncodedPayload(Class<? extends IPacket> clazz,
+            byte[] data, int offset, int length) {
+        this.payload = new EncodedPayload(clazz, data, offset, length);
+        this.payload.setParent(this);
+    }
+
     /**
      * @param payload the payload to set
      */
@@ -60,6 +79,46 @@ public abstract class BasePacket implements IPacket {
         return this;
     }
     
+    /**
+     * Sets the payload's parent and serializes it, unless it has not been
+     * decoded; the bytes of such a payload are written as received by
+     * {@link #putPayload}, without being copied first.
+     * @return the serialized payload, or null if there is none or it has not
+     *         been decoded
+     */
+    protected byte[] serializePayload() {
+        if (payload == null || payload instanceof EncodedPayload)
+            return null;
+        payload.setParent(this);
+        return payload.serialize();
+    }
+
+    /**
+     * @param payloadData the payload as returned by {@link #serializePayload}
+     * @return length of the serialized payload
+     */
+    protected int getPayloadLength(byte[] payloadData) {
+        if (payloadData != null)
+            return payloadData.length;
+        if (payload instanceof EncodedPayload)
+            return ((EncodedPayload) payload).length;
+        return 0;
+    }
+
+    /**
+     * Writes the serialized payload.
+     * @param bb where to write it
+     * @param payloadData the payload as returned by {@link #serializePayload}
+     */
+    protected void putPayload(ByteBuffer bb, byte[] payloadData) {
+        if (payloadData != null) {
+            bb.put(payloadData);
+        } else if (payload instanceof EncodedPayload) {
+            EncodedPayload encoded = (EncodedPayload) payload;
+            bb.put(encoded.data, encoded.offset, encoded.length);
+        }
+    }
+
     @Override
     public void resetChecksum() {
         if (this.parent != null)
@@ -73,6 +132,7 @@ public abstract class BasePacket implements IPacket {
     public int hashCode() {
         final int prime = 6733;
         int result = 1;
+        IPacket payload = getPayload();
         result = prime * result + ((payload == null) ? 0 : payload.hashCode());
         return result;
     }
@@ -89,10 +149,11 @@ public abstract class BasePacket implements IPacket {
         if (!(obj instanceof BasePacket))
             return false;
         BasePacket other = (BasePacket) obj;
+        IPacket payload = getPayload();
         if (payload == null) {
-            if (other.payload != null)
+            if (other.getPayload() != null)
                 return false;
-        } else if (!payload.equals(other.payload))
+        } else if (!payload.equals(other.getPayload()))
             return false;
         return true;
     }
@@ -0,0 +1,73 @@
+package net.floodlightcontroller.packet;
+
+import java.util.Arrays;
+
+/**
+ * A payload that has not been decoded yet: the bytes it was received in and
+ * the class to decode it with. It stands in for the payload until
+ * {@link BasePacket#getPayload()} is first called, and serializes to the
+ * bytes as received, so a payload that is never looked at is neither
+ * decoded nor rebuilt.
+ */
+class EncodedPayload extends BasePacket {
+    private Class<? extends IPacket> clazz;
+    protected byte[] data;
+    protected int offset;
+    protected int length;
+
+    /**
+     * @param clazz class of the payload; null for {@link Data}
+     * @param data the bytes holding the payload
+     * @param offset where the payload starts
+     * @param length length of the payload
+     */
+    EncodedPayload(Class<? extends IPacket> clazz, byte[] data, int offset,
+            int length) {
+        this.clazz = clazz;
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * @return class the payload is decoded with; null for {@link Data}
+     */
+    Class<? extends IPacket> getPayloadClass() {
+        return clazz;
+    }
+
+    /**
+     * Decodes the payload.
+     * @param parent the packet holding the payload
+     * @return the decoded payload
+     */
+    IPacket decode(IPacket parent) {
+        IPacket payload;
+        if (clazz == null) {
+            payload = new Data();
+        } else {
+            try {
+                payload = clazz.newInstance();
+            } catch (Exception e) {
+                throw new RuntimeException("Error parsing payload for "
+                        + parent.getClass().getSimpleName() + " packet", e);
+            }
+        }
+        payload = payload.deserialize(data, offset, length);
+        payload.setParent(parent);
+        return payload;
+    }
+
+    @Override
+    public byte[] serialize() {
+        return Arrays.copyOfRange(data, offset, offset + length);
+    }
+
+    @Override
+    public IPacket deserialize(byte[] data, int offset, int length) {
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+}
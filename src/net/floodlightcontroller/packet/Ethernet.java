@@ -198,13 +198,9 @@ public class Ethernet extends BasePacket {
     }
 
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        byte[] payloadData = serializePayload();
         int length = 14 + ((vlanID == VLAN_UNTAGGED) ? 0 : 4) +
-                          ((payloadData == null) ? 0 : payloadData.length);
+                          getPayloadLength(payloadData);
         if (pad && length < 60) {
             length = 60;
         }
@@ -217,8 +213,7 @@ public class Ethernet extends BasePacket {
             bb.putShort((short) ((priorityCode << 13) | (vlanID & 0x0fff)));
         }
         bb.putShort(etherType);
-        if (payloadData != null)
-            bb.put(payloadData);
+        putPayload(bb, payloadData);
         if (pad) {
             Arrays.fill(data, bb.position(), data.length, (byte)0x0);
         }
@@ -253,19 +248,9 @@ public class Ethernet extends BasePacket {
         }
         this.etherType = etherType;
         
-        IPacket payload;
-        if (Ethernet.etherTypeClassMap.containsKey(this.etherType)) {
-            Class<? extends IPacket> clazz = Ethernet.etherTypeClassMap.get(this.etherType);
-            try {
-                payload = clazz.newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Error parsing payload for Ethernet packet", e);
-            }
-        } else {
-            payload = new Data();
-        }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        // The payload is decoded when it is first asked for
+        setEncodedPayload(Ethernet.etherTypeClassMap.get(this.etherType),
+                data, bb.position(), bb.limit()-bb.position());
         return this;
     }
 
@@ -34,6 +34,9 @@ public class IPv4 extends BasePacket {
     public static final byte PROTOCOL_ICMP = 0x1;
     public static final byte PROTOCOL_TCP = 0x6;
     public static final byte PROTOCOL_UDP = 0x11;
+
+    /** More fragments flag, in the flags field */
+    public static final byte FLAGS_MORE_FRAGMENTS = 0x1;
     public static Map<Byte, Class<? extends IPacket>> protocolClassMap;
 
     static {
@@ -165,6 +168,27 @@ public class IPv4 extends BasePacket {
         return this;
     }
 
+    /**
+     * @return true if the packet is a fragment: the more fragments flag is
+     *         set or the fragment offset is not 0
+     */
+    public boolean isFragment() {
+        return (this.flags & FLAGS_MORE_FRAGMENTS) != 0
+                || (this.fragmentOffset & 0x1fff) != 0;
+    }
+
+    /**
+     * Checks in place whether a received IPv4 packet is a fragment, as
+     * {@link #isFragment()} does.
+     * @param data the bytes holding the packet
+     * @param offset where the packet starts
+     * @return true if the more fragments flag is set or the fragment offset
+     *         is not 0
+     */
+    public static boolean isFragment(byte[] data, int offset) {
+        return ((data[offset + 6] & 0x3f) | (data[offset + 7] & 0xff)) != 0;
+    }
+
     /**
      * @return the ttl
      */
@@ -209,6 +233,111 @@ public class IPv4 extends BasePacket {
         this.checksum = checksum;
         return this;
     }
+    /**
+     * Gets the ports of a TCP or UDP payload, reading them from the received
+     * bytes if the payload has not been decoded.
+     * @return source port in the high 16 bits and destination port in the
+     *         low 16 bits; 0 if the payload is not TCP or UDP
+     */
+    public int getTransportPorts() {
+        if (payload instanceof EncodedPayload) {
+            EncodedPayload encoded = (EncodedPayload) payload;
+            if ((encoded.getPayloadClass() != TCP.class
+                    && encoded.getPayloadClass() != UDP.class)
+                    || encoded.length < 4)
+                return 0;
+            return ByteBuffer.wrap(encoded.data, encoded.offset, 4).getInt();
+        }
+        if (payload instanceof TCP) {
+            TCP tcp = (TCP) payload;
+            return (tcp.getSourcePort() << 16) | (tcp.getDestinationPort() & 0xffff);
+        }
+        if (payload instanceof UDP) {
+            UDP udp = (UDP) payload;
+            return (udp.getSourcePort() << 16) | (udp.getDestinationPort() & 0xffff);
+        }
+        return 0;
+    }
+
+    /**
+     * Checks the header of a received IPv4 packet in place, before it is
+     * parsed: the version must be 4, the header length at least 5 words and
+     * within the data, the total length between the header length and the
+     * data length, and the ones'-complement sum of the header words,
+     * checksum included, must be 0xffff.
+     * @param data the bytes holding the packet
+     * @param offset where the packet starts
+     * @param length number of bytes from the start of the packet to the end
+     *        of the data, including any link layer padding
+     * @return true if the header is well formed and its checksum is correct
+     */
+    public static boolean isHeaderValid(byte[] data, int offset, int length) {
+        if (length < 20)
+            return false;
+        int versionAndLength = data[offset] & 0xff;
+        if ((versionAndLength >> 4) != 4)
+            return false;
+        int headerBytes = (versionAndLength & 0xf) * 4;
+        if (headerBytes < 20 || headerBytes > length)
+            return false;
+        int totalLength = ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+        if (totalLength < headerBytes || totalLength > length)
+            return false;
+
+        int accumulation = 0;
+        for (int i = offset; i < offset + headerBytes; i += 2)
+            accumulation += ((data[i] & 0xff) << 8) | (data[i + 1] & 0xff);
+        accumulation = ((accumulation >> 16) & 0xffff) + (accumulation & 0xffff);
+        accumulation = ((accumulation >> 16) & 0xffff) + (accumulation & 0xffff);
+        return accumulation == 0xffff;
+    }
+
+    /**
+     * Decrements the TTL and updates the checksum to match, incrementally
+     * as described in RFC 1624 (eqn. 3): HC' = ~(~HC + ~m + m'), where m is
+     * the header word holding the TTL. The cost does not depend on the
+     * size of the packet.
+     * @return this
+     */
+    public IPv4 decrementTtl() {
+        int oldWord = ((this.ttl & 0xff) << 8) | (this.protocol & 0xff);
+        this.ttl--;
+        int newWord = ((this.ttl & 0xff) << 8) | (this.protocol & 0xff);
+        this.checksum = (short) adjustChecksum(this.checksum, oldWord, newWord);
+        return this;
+    }
+
+    /**
+     * Decrements the TTL of a packet in place, in its bytes, and updates the
+     * header checksum incrementally, as {@link #decrementTtl()} does.
+     * @param data the bytes holding the packet
+     * @param offset where the packet starts
+     */
+    public static void decrementTtl(byte[] data, int offset) {
+        int oldWord = ((data[offset + 8] & 0xff) << 8) | (data[offset + 9] & 0xff);
+        int newWord = oldWord - 0x100;
+        int checksum = ((data[offset + 10] & 0xff) << 8) | (data[offset + 11] & 0xff);
+        checksum = adjustChecksum(checksum, oldWord, newWord);
+        data[offset + 8] = (byte) (newWord >>> 8);
+        data[offset + 10] = (byte) (checksum >>> 8);
+        data[offset + 11] = (byte) checksum;
+    }
+
+    /**
+     * Computes a header checksum after one 16-bit word of the header
+     * changed, from the old checksum (RFC 1624, eqn. 3).
+     * @param checksum the old checksum
+     * @param oldWord the word before the change
+     * @param newWord the word after the change
+     * @return the new checksum, in the low 16 bits
+     */
+    private static int adjustChecksum(int checksum, int oldWord, int newWord) {
+        int sum = (~checksum & 0xffff) + (~oldWord & 0xffff) + (newWord & 0xffff);
+        sum = (sum & 0xffff) + (sum >>> 16);
+        sum = (sum & 0xffff) + (sum >>> 16);
+        return ~sum & 0xffff;
+    }
+
     @Override
     public void resetChecksum() {
         this.checksum = 0;
@@ -287,19 +416,14 @@ public class IPv4 extends BasePacket {
      *      -totalLength : 0
      */
     public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+        byte[] payloadData = serializePayload();
 
         int optionsLength = 0;
         if (this.options != null)
             optionsLength = this.options.length / 4;
         this.headerLength = (byte) (5 + optionsLength);
 
-        this.totalLength = (short) (this.headerLength * 4 + ((payloadData == null) ? 0
-                : payloadData.length));
+        this.totalLength = (short) (this.headerLength * 4 + getPayloadLength(payloadData));
 
         byte[] data = new byte[this.totalLength];
         ByteBuffer bb = ByteBuffer.wrap(data);
@@ -316,8 +440,7 @@ public class IPv4 extends BasePacket {
         bb.putInt(this.destinationAddress);
         if (this.options != null)
             bb.put(this.options);
-        if (payloadData != null)
-            bb.put(payloadData);
+        putPayload(bb, payloadData);
 
         // compute checksum if needed
         if (this.checksum == 0) {
@@ -326,6 +449,9 @@ public class IPv4 extends BasePacket {
             for (int i = 0; i < this.headerLength * 2; ++i) {
                 accumulation += 0xffff & bb.getShort();
             }
+            // fold twice; the first fold can carry into bit 16
+            accumulation = ((accumulation >> 16) & 0xffff)
+                    + (accumulation & 0xffff);
             accumulation = ((accumulation >> 16) & 0xffff)
                     + (accumulation & 0xffff);
             this.checksum = (short) (~accumulation & 0xffff);
@@ -360,19 +486,9 @@ public class IPv4 extends BasePacket {
             bb.get(this.options);
         }
 
-        IPacket payload;
-        if (IPv4.protocolClassMap.containsKey(this.protocol)) {
-            Class<? extends IPacket> clazz = IPv4.protocolClassMap.get(this.protocol);
-            try {
-                payload = clazz.newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Error parsing payload for IPv4 packet", e);
-            }
-        } else {
-            payload = new Data();
-        }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        // The payload is decoded when it is first asked for
+        setEncodedPayload(IPv4.protocolClassMap.get(this.protocol),
+                data, bb.position(), bb.limit()-bb.position());
 
         if (this.totalLength != length)
             this.isTruncated = true;